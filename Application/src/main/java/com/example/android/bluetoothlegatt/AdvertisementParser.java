@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.UnsupportedEncodingException;
+import java.util.UUID;
+
+/**
+ * Flyweight view of a raw advertisement (and scan response), as delivered to
+ * {@code LeScanCallback.onLeScan} or by {@code ScanRecord.getBytes()}.
+ *
+ * {@link #reset(byte[])} walks the AD structures once and only remembers where each field
+ * lives in the caller's array; nothing is copied or allocated, apart from {@link #getName()}
+ * which is meant for display.  A parser is reused for every advertisement, from a single
+ * thread, and its view is only valid until the next reset or until the array is reused.
+ * Firmware state advertised in manufacturer-specific or service data can be read in place
+ * through {@link #getManufacturerDataOffset()} and {@link #getServiceDataOffset()}.
+ */
+public final class AdvertisementParser {
+
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16 = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32 = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128 = 0x07;
+    public static final int TYPE_SHORT_NAME = 0x08;
+    public static final int TYPE_NAME = 0x09;
+    public static final int TYPE_TX_POWER = 0x0a;
+    public static final int TYPE_SERVICE_DATA16 = 0x16;
+    public static final int TYPE_MANUFACTURER_DATA = 0xff;
+
+    // Returned by the getters of fields that are not in the advertisement.
+    public static final int NONE = -1;
+    public static final int TX_POWER_NONE = Integer.MIN_VALUE;
+
+    // Bluetooth base UUID, 00000000-0000-1000-8000-00805f9b34fb.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private byte[] mData;
+    private int mLength;
+    private int mFlags;
+    private int mTxPower;
+    private int mNameOffset;
+    private int mNameLength;
+    private int mManufacturerOffset;
+    private int mManufacturerLength;
+    private int mServiceDataOffset;
+    private int mServiceDataLength;
+
+    /**
+     * Parses {@code data}, keeping a reference to it.
+     *
+     * @return false if the record is malformed; the fields before the bad structure are still
+     * available.
+     */
+    public boolean reset(byte[] data) {
+        mData = data;
+        mLength = 0;
+        mFlags = NONE;
+        mTxPower = TX_POWER_NONE;
+        mNameOffset = NONE;
+        mNameLength = 0;
+        mManufacturerOffset = NONE;
+        mManufacturerLength = 0;
+        mServiceDataOffset = NONE;
+        mServiceDataLength = 0;
+        if (data == null) {
+            return false;
+        }
+        int offset = 0;
+        while (offset < data.length) {
+            int length = data[offset] & 0xff;
+            if (length == 0) {
+                // Zero padding ends the significant part.
+                break;
+            }
+            if (offset + 1 + length > data.length) {
+                return false;
+            }
+            int type = data[offset + 1] & 0xff;
+            int value = offset + 2;
+            int valueLength = length - 1;
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (valueLength > 0) {
+                        mFlags = data[value] & 0xff;
+                    }
+                    break;
+                case TYPE_SHORT_NAME:
+                case TYPE_NAME:
+                    // A complete name wins over a shortened one, whatever the order.
+                    if (mNameOffset == NONE || type == TYPE_NAME) {
+                        mNameOffset = value;
+                        mNameLength = valueLength;
+                    }
+                    break;
+                case TYPE_TX_POWER:
+                    if (valueLength > 0) {
+                        mTxPower = data[value];
+                    }
+                    break;
+                case TYPE_SERVICE_DATA16:
+                    if (mServiceDataOffset == NONE) {
+                        mServiceDataOffset = value;
+                        mServiceDataLength = valueLength;
+                    }
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    if (mManufacturerOffset == NONE && valueLength >= 2) {
+                        mManufacturerOffset = value;
+                        mManufacturerLength = valueLength;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            offset += 1 + length;
+            mLength = offset;
+        }
+        return true;
+    }
+
+    public byte[] getBytes() {
+        return mData;
+    }
+
+    /**
+     * @return the length of the significant part of the record, without padding.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the flags byte, or {@link #NONE}.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return the advertised transmit power in dBm, or {@link #TX_POWER_NONE}.
+     */
+    public int getTxPower() {
+        return mTxPower;
+    }
+
+    public boolean hasName() {
+        return mNameOffset != NONE;
+    }
+
+    public int getNameOffset() {
+        return mNameOffset;
+    }
+
+    public int getNameLength() {
+        return mNameLength;
+    }
+
+    /**
+     * @return true if the advertised name contains {@code pattern}, ignoring ASCII case.
+     * Compares the UTF-8 bytes in place.
+     */
+    public boolean nameContains(String pattern) {
+        int length = pattern.length();
+        for (int i = 0, last = mNameLength - length; i <= last; i++) {
+            int j = 0;
+            while (j < length
+                    && upper(mData[mNameOffset + i + j]) == upper(pattern.charAt(j))) {
+                j++;
+            }
+            if (j == length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the advertised name, or null.  Allocates.
+     */
+    public String getName() {
+        if (mNameOffset == NONE) {
+            return null;
+        }
+        try {
+            return new String(mData, mNameOffset, mNameLength, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if {@code uuid} is in one of the advertised service UUID lists, whatever
+     * their width.
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        // 16 and 32 bit UUIDs are aliases of the base UUID.
+        boolean aliased = lsb == BASE_UUID_LSB
+                && (msb & 0xffffffffL) == BASE_UUID_MSB;
+        long shortUuid = msb >>> 32;
+        int offset = 0;
+        while (offset < mLength) {
+            int length = mData[offset] & 0xff;
+            int type = mData[offset + 1] & 0xff;
+            int value = offset + 2;
+            int end = offset + 1 + length;
+            switch (type) {
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16:
+                    for (; aliased && value + 2 <= end; value += 2) {
+                        if (getUnsigned(value, 2) == shortUuid) {
+                            return true;
+                        }
+                    }
+                    break;
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32:
+                    for (; aliased && value + 4 <= end; value += 4) {
+                        if (getUnsigned(value, 4) == shortUuid) {
+                            return true;
+                        }
+                    }
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128:
+                    for (; value + 16 <= end; value += 16) {
+                        if (getUnsigned(value, 8) == lsb && getUnsigned(value + 8, 8) == msb) {
+                            return true;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            offset = end;
+        }
+        return false;
+    }
+
+    /**
+     * @return the Bluetooth SIG company identifier of the manufacturer-specific data, or
+     * {@link #NONE}.
+     */
+    public int getManufacturerId() {
+        return mManufacturerOffset == NONE ? NONE : (int) getUnsigned(mManufacturerOffset, 2);
+    }
+
+    /**
+     * @return the offset of the manufacturer-specific data after the company identifier, or
+     * {@link #NONE}.
+     */
+    public int getManufacturerDataOffset() {
+        return mManufacturerOffset == NONE ? NONE : mManufacturerOffset + 2;
+    }
+
+    public int getManufacturerDataLength() {
+        return mManufacturerOffset == NONE ? 0 : mManufacturerLength - 2;
+    }
+
+    /**
+     * @return the 16 bit service UUID of the first service data field, or {@link #NONE}.
+     */
+    public int getServiceDataUuid() {
+        return mServiceDataOffset == NONE || mServiceDataLength < 2 ? NONE
+                : (int) getUnsigned(mServiceDataOffset, 2);
+    }
+
+    /**
+     * @return the offset of the first service data field after its UUID, or {@link #NONE}.
+     */
+    public int getServiceDataOffset() {
+        return mServiceDataOffset == NONE || mServiceDataLength < 2 ? NONE
+                : mServiceDataOffset + 2;
+    }
+
+    public int getServiceDataLength() {
+        return mServiceDataLength < 2 ? 0 : mServiceDataLength - 2;
+    }
+
+    /**
+     * Reads {@code bytes} little-endian bytes at {@code offset}, as advertisements do.
+     */
+    public long getUnsigned(int offset, int bytes) {
+        long value = 0;
+        for (int i = bytes - 1; i >= 0; i--) {
+            value = (value << 8) | (mData[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static int upper(int c) {
+        c &= 0xff;
+        return c >= 'a' && c <= 'z' ? c - ('a' - 'A') : c;
+    }
+}
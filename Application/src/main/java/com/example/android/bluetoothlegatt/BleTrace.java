@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Structured trace of the BLE hot path.  An event is a number from the {@code EVENT_}
+ * constants, the device it concerns and up to three {@code long} arguments, so a call does
+ * not allocate or format anything until someone reads it.
+ *
+ * Every event at or above {@link #setRecordLevel(int)} (all of them by default) goes into a
+ * fixed ring of the last {@link #CAPACITY} events, kept as primitives, which is printed by
+ * {@code dumpsys}; when an {@link #e error} is traced, the events recorded since the last such
+ * print go to logcat.  Events are formatted for logcat only at or above both
+ * {@link #COMPILED_LOG_LEVEL} and {@link #setLogLevel(int)}.  Each level's method compares its
+ * own constant with {@link #COMPILED_LOG_LEVEL}, which is a constant INFO in release builds, so
+ * the compiler drops the logging of the levels below it there.  Levels are those of
+ * {@code android.util.Log}.  Safe to call from any thread.
+ */
+public final class BleTrace {
+    private static final String TAG = "BleTrace";
+
+    public static final int COMPILED_LOG_LEVEL = BuildConfig.DEBUG ? Log.VERBOSE : Log.INFO;
+    // Disables recording or logging when passed as a level.
+    public static final int OFF = Log.ASSERT + 1;
+    public static final int CAPACITY = 1024;
+
+    // Arguments: status.
+    public static final int EVENT_CONNECTED = 0;
+    public static final int EVENT_DISCONNECTED = 1;
+    // Arguments: from, to, microseconds spent in from.
+    public static final int EVENT_PHASE = 2;
+    // Arguments: phase it failed in.
+    public static final int EVENT_HANDSHAKE_FAILED = 3;
+    // No arguments.
+    public static final int EVENT_LAYOUT_REUSED = 4;
+    public static final int EVENT_SERVICES_CHANGED = 5;
+    // Arguments: characteristic (first 32 bits of the UUID), length, first 8 bytes.
+    public static final int EVENT_NOTIFICATION = 6;
+    public static final int EVENT_READ = 7;
+    // Arguments: characteristic, status.
+    public static final int EVENT_READ_FAILED = 8;
+    public static final int EVENT_WRITE_FAILED = 9;
+    // Arguments: characteristic.
+    public static final int EVENT_SEED_READ_NOT_QUEUED = 10;
+    // No arguments.
+    public static final int EVENT_NO_CHARACTERISTIC = 11;
+    // Arguments: frames, partial frames, overflows.
+    public static final int EVENT_FRAMES = 12;
+    // Arguments: rssi.
+    public static final int EVENT_RSSI = 13;
+    // Arguments: mtu.
+    public static final int EVENT_MTU = 14;
+    // Arguments: tx phy, rx phy.
+    public static final int EVENT_PHY = 15;
+    // Arguments: seed length.
+    public static final int EVENT_TOKEN_FAILED = 16;
+
+    private static final String[] FORMATS = {
+            "connected, status %d",
+            "disconnected, status %d",
+            "phase %d -> %d after %d us",
+            "handshake failed in phase %d",
+            "reusing the cached GATT layout",
+            "services changed",
+            "notification on %08x, %d bytes: %016x",
+            "read %08x, %d bytes: %016x",
+            "read of %08x failed with status %d",
+            "write of %08x failed with status %d",
+            "seed read of %08x not queued",
+            "no characteristic for the CCCD write",
+            "%d frames, %d partial, %d overflowed",
+            "RSSI %d",
+            "MTU %d",
+            "PHY tx %d, rx %d",
+            "no token for a %d byte seed",
+    };
+
+    private static final Ring sRing = new Ring(CAPACITY);
+    // Events before this one have been printed to logcat after an error.
+    private static final AtomicLong sPrinted = new AtomicLong();
+    private static volatile int sLogLevel = Log.INFO;
+    private static volatile int sRecordLevel = Log.VERBOSE;
+
+    private BleTrace() {
+    }
+
+    /**
+     * Sets the lowest level printed to logcat, never below {@link #COMPILED_LOG_LEVEL}.
+     */
+    public static void setLogLevel(int level) {
+        sLogLevel = level;
+    }
+
+    /**
+     * Sets the lowest level kept in the ring.
+     */
+    public static void setRecordLevel(int level) {
+        sRecordLevel = level;
+    }
+
+    public static void v(int event, String device, long arg0, long arg1, long arg2) {
+        if (Log.VERBOSE >= sRecordLevel) {
+            sRing.record(Log.VERBOSE, event, device, arg0, arg1, arg2);
+        }
+        if (Log.VERBOSE >= COMPILED_LOG_LEVEL && Log.VERBOSE >= sLogLevel) {
+            log(Log.VERBOSE, event, device, arg0, arg1, arg2);
+        }
+    }
+
+    public static void d(int event, String device, long arg0, long arg1, long arg2) {
+        if (Log.DEBUG >= sRecordLevel) {
+            sRing.record(Log.DEBUG, event, device, arg0, arg1, arg2);
+        }
+        if (Log.DEBUG >= COMPILED_LOG_LEVEL && Log.DEBUG >= sLogLevel) {
+            log(Log.DEBUG, event, device, arg0, arg1, arg2);
+        }
+    }
+
+    public static void i(int event, String device, long arg0, long arg1, long arg2) {
+        if (Log.INFO >= sRecordLevel) {
+            sRing.record(Log.INFO, event, device, arg0, arg1, arg2);
+        }
+        if (Log.INFO >= COMPILED_LOG_LEVEL && Log.INFO >= sLogLevel) {
+            log(Log.INFO, event, device, arg0, arg1, arg2);
+        }
+    }
+
+    public static void w(int event, String device, long arg0, long arg1, long arg2) {
+        if (Log.WARN >= sRecordLevel) {
+            sRing.record(Log.WARN, event, device, arg0, arg1, arg2);
+        }
+        if (Log.WARN >= COMPILED_LOG_LEVEL && Log.WARN >= sLogLevel) {
+            log(Log.WARN, event, device, arg0, arg1, arg2);
+        }
+    }
+
+    /**
+     * Traces an error and prints the events recorded since the last error to logcat, so the
+     * events that led to it are kept without printing any of them twice.
+     */
+    public static void e(int event, String device, long arg0, long arg1, long arg2) {
+        if (Log.ERROR >= sRecordLevel) {
+            sRing.record(Log.ERROR, event, device, arg0, arg1, arg2);
+            printNew(Log.WARN);
+        }
+        if (Log.ERROR >= COMPILED_LOG_LEVEL && Log.ERROR >= sLogLevel) {
+            log(Log.ERROR, event, device, arg0, arg1, arg2);
+        }
+    }
+
+    /**
+     * @return the first 32 bits of {@code uuid}, which tell the Starcom characteristics apart.
+     */
+    public static long shortUuid(UUID uuid) {
+        return uuid.getMostSignificantBits() >>> 32;
+    }
+
+    /**
+     * @return the first 8 bytes of {@code data}, big-endian, zero padded.
+     */
+    public static long head(byte[] data, int length) {
+        long head = 0;
+        for (int i = 0; i < 8; i++) {
+            head = (head << 8) | (i < length ? data[i] & 0xff : 0);
+        }
+        return head;
+    }
+
+    /**
+     * Prints the ring, oldest event first.
+     */
+    public static void dump(PrintWriter writer, String prefix) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        Entry entry = new Entry();
+        for (long seq = sRing.oldest(), end = sRing.next(); seq < end; seq++) {
+            if (sRing.read(seq, entry)) {
+                writer.println(prefix + entry.format(now));
+            }
+        }
+    }
+
+    private static void printNew(int priority) {
+        long end = sRing.next();
+        long from;
+        do {
+            from = sPrinted.get();
+            if (from >= end) {
+                return;
+            }
+        } while (!sPrinted.compareAndSet(from, end));
+        long now = SystemClock.elapsedRealtimeNanos();
+        Entry entry = new Entry();
+        Log.println(priority, TAG, "Events since the last error:");
+        for (long seq = Math.max(from, sRing.oldest()); seq < end; seq++) {
+            if (sRing.read(seq, entry)) {
+                Log.println(priority, TAG, entry.format(now));
+            }
+        }
+    }
+
+    private static void log(int level, int event, String device, long arg0, long arg1,
+                            long arg2) {
+        Log.println(level, TAG, format(event, device, arg0, arg1, arg2));
+    }
+
+    private static String format(int event, String device, long arg0, long arg1, long arg2) {
+        String message = String.format(Locale.US, FORMATS[event], arg0, arg1, arg2);
+        return device != null ? device + ": " + message : message;
+    }
+
+    private static final class Entry {
+        long mTime;
+        int mLevel;
+        int mEvent;
+        String mDevice;
+        long mArg0;
+        long mArg1;
+        long mArg2;
+
+        String format(long now) {
+            return String.format(Locale.US, "%10.3f %c ", (mTime - now) / 1e6,
+                    "VDIWEA".charAt(Math.max(0, mLevel - Log.VERBOSE)))
+                    + BleTrace.format(mEvent, mDevice, mArg0, mArg1, mArg2);
+        }
+    }
+
+    /**
+     * Multi-producer ring of events.  A writer claims a sequence number, clears the slot's
+     * stamp, fills the slot and stamps it; a reader only takes a slot whose stamp is the
+     * sequence it expects both before and after copying it.  The fields of a slot are atomics,
+     * written with ordered stores behind the cleared stamp and read with volatile loads, so the
+     * second stamp check can not be satisfied by a copy that mixes two events.
+     */
+    private static final class Ring {
+        // Longs per slot: time, level and event, three arguments.
+        private static final int SLOT_LONGS = 5;
+
+        private final int mMask;
+        private final AtomicLong mNext = new AtomicLong();
+        private final AtomicLongArray mStamps;
+        private final AtomicLongArray mSlots;
+        private final AtomicReferenceArray<String> mDevices;
+
+        Ring(int capacity) {
+            mMask = capacity - 1;
+            mStamps = new AtomicLongArray(capacity);
+            mSlots = new AtomicLongArray(capacity * SLOT_LONGS);
+            mDevices = new AtomicReferenceArray<String>(capacity);
+        }
+
+        void record(int level, int event, String device, long arg0, long arg1, long arg2) {
+            long seq = mNext.getAndIncrement();
+            int slot = (int) seq & mMask;
+            int base = slot * SLOT_LONGS;
+            mStamps.set(slot, 0);
+            mSlots.lazySet(base, SystemClock.elapsedRealtimeNanos());
+            mSlots.lazySet(base + 1, level << 16 | event);
+            mSlots.lazySet(base + 2, arg0);
+            mSlots.lazySet(base + 3, arg1);
+            mSlots.lazySet(base + 4, arg2);
+            mDevices.lazySet(slot, device);
+            mStamps.lazySet(slot, seq + 1);
+        }
+
+        long next() {
+            return mNext.get();
+        }
+
+        long oldest() {
+            return Math.max(0, mNext.get() - (mMask + 1));
+        }
+
+        // Returns false if seq is still being written or has been overwritten.
+        boolean read(long seq, Entry entry) {
+            int slot = (int) seq & mMask;
+            int base = slot * SLOT_LONGS;
+            if (mStamps.get(slot) != seq + 1) {
+                return false;
+            }
+            entry.mTime = mSlots.get(base);
+            int levelAndEvent = (int) mSlots.get(base + 1);
+            entry.mLevel = levelAndEvent >>> 16;
+            entry.mEvent = levelAndEvent & 0xffff;
+            entry.mArg0 = mSlots.get(base + 2);
+            entry.mArg1 = mSlots.get(base + 3);
+            entry.mArg2 = mSlots.get(base + 4);
+            entry.mDevice = mDevices.get(slot);
+            return mStamps.get(slot) == seq + 1;
+        }
+    }
+}
@@ -29,17 +29,28 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import com.example.android.bluetoothlegatt.starcom.BLECommand;
+import com.example.android.bluetoothlegatt.starcom.CropXReading;
+import com.example.android.bluetoothlegatt.starcom.CropXResponseParser;
+import com.example.android.bluetoothlegatt.starcom.CropXState;
+import com.example.android.bluetoothlegatt.starcom.FirmwareVersion;
+import com.example.android.bluetoothlegatt.starcom.FrameAssembler;
+import com.example.android.bluetoothlegatt.starcom.ProtocolRegistry;
+import com.example.android.bluetoothlegatt.starcom.QueueRecordDecoder;
+import com.example.android.bluetoothlegatt.starcom.RecordBatch;
 import com.example.android.bluetoothlegatt.starcom.Sha256;
 import com.example.android.bluetoothlegatt.starcom.StarcomUUID;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
-import java.util.UUID;
-
-import static com.example.android.bluetoothlegatt.starcom.Sha256.bytesToHex;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -47,226 +58,764 @@ import static com.example.android.bluetoothlegatt.starcom.Sha256.bytesToHex;
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
-    private static final String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
-    private static final String CHARACTERISTIC_NOTIFICATION_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";;
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
-
-    public final static String ACTION_GATT_CONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_GATT_SERVICES_DISCOVERED =
-            "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
-
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    private final GattConnectionPool mConnectionPool = new GattConnectionPool();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Largest reply that can be reassembled from notifications.
+    private static final int FRAME_CAPACITY = 2048;
+    // Replies that are not newline terminated are delivered once the link has been quiet
+    // for this long.
+    private static final long FRAME_FLUSH_DELAY_MS = 150;
+    private static final String READINGS_DIRECTORY = "readings";
+    // How long the device has to answer the version check that confirms the token.
+    private static final long AUTHENTICATION_DEADLINE_MS = 5000;
+
+    private final GattEventBus mEventBus = GattEventBus.getInstance();
+    private DrainCheckpoints mDrainCheckpoints;
+    private KnownDeviceRegistry mKnownDevices;
+    private GattLayoutCache mLayoutCache;
+    private volatile ReadingStore mReadingStore;
+    // Guards handing the store over from the thread that opens it against onDestroy().
+    private final Object mReadingStoreLock = new Object();
+    private boolean mReadingStoreOpening = false;
+    private boolean mDestroyed = false;
+    private final ReadingAggregator mAggregator = new ReadingAggregator();
+    private final ConnectionStats mStats = new ConnectionStats();
+
+    // Persists and aggregates every measurement reply as it is parsed, on the notification
+    // thread.
+    private final CropXResponseParser mResponseParser = new CropXResponseParser(
+            new CropXResponseParser.Listener() {
+                @Override
+                public void onReading(String address, CropXReading reading) {
+                    long now = System.currentTimeMillis();
+                    mAggregator.add(address, now, reading);
+                    ReadingStore store = mReadingStore;
+                    if (store == null) {
+                        return;
+                    }
+                    try {
+                        store.append(address, now, reading);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to store reading: " + e.getMessage());
+                    }
+                }
+
+                @Override
+                public void onState(String address, CropXState state) {
+                }
+
+                @Override
+                public void onVersion(String address, FirmwareVersion version) {
+                    Log.i(TAG, address + ": firmware " + version);
+                    mLayoutCache.onFirmwareVersion(address, version.toString());
+                }
+            });
+
+    /**
+     * Receives the callbacks of one connection's {@code BluetoothGatt} on a binder thread and
+     * only hands them over to the connection's thread, so the stack is never held up by our
+     * handling or logging.  Characteristic values are copied here, as the stack overwrites
+     * them with the next notification.
+     */
+    private static final class GattCallback extends BluetoothGattCallback {
+        private final GattEventRing mEvents;
+
+        GattCallback(GattEventRing events) {
+            mEvents = events;
+        }
+
+        private void post(int type, BluetoothGatt gatt, Object target, int status, int arg0,
+                          int arg1) {
+            GattEventRing.Event event = mEvents.claim();
+            event.mType = type;
+            event.mGatt = gatt;
+            event.mTarget = target;
+            event.mStatus = status;
+            event.mArg0 = arg0;
+            event.mArg1 = arg1;
+            event.setData(null);
+            mEvents.publish();
+        }
+
+        private void post(int type, BluetoothGatt gatt,
+                          BluetoothGattCharacteristic characteristic, int status) {
+            GattEventRing.Event event = mEvents.claim();
+            event.mType = type;
+            event.mGatt = gatt;
+            event.mTarget = characteristic;
+            event.mStatus = status;
+            event.setData(characteristic.getValue());
+            mEvents.publish();
+        }
+
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
+            post(GattEventRing.EVENT_CONNECTION_STATE, gatt, null, status, newState, 0);
         }
 
         @Override
         public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            if (mBluetoothDeviceAddress!= null && status == BluetoothGatt.GATT_SUCCESS &&
-                    gatt.getDevice().getAddress().equals(mBluetoothDeviceAddress)){
-                Log.e(TAG,"RSSI: " + rssi);
-            }
-            super.onReadRemoteRssi(gatt, rssi, status);
+            post(GattEventRing.EVENT_READ_RSSI, gatt, null, status, rssi, 0);
         }
 
-        /**
-         * this function is called after services are discovered
-         */
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                List<BluetoothGattService> gattServices = gatt.getServices();
-                if (gattServices==null || gattServices.size()<=0){
-                    return;
-                }
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            post(GattEventRing.EVENT_MTU_CHANGED, gatt, null, status, mtu, 0);
+        }
 
-                // set notifications for the READ characteristic
-                BluetoothGattCharacteristic characteristicRead =
-                        gatt.getService(StarcomUUID.SERVICE.getmUUID())
-                                .getCharacteristic(StarcomUUID.READ.getmUUID());
-                setCharacteristicNotification(characteristicRead,true);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
-            }
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            post(GattEventRing.EVENT_PHY_UPDATE, gatt, null, status, txPhy, rxPhy);
         }
 
-        /**
-         * this function is called AFTER on description was written
-         */
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
-                if (characteristic!=null){
-                    if (!readCharacteristic(characteristic)){
-                        Log.e(TAG, "onDescriptorWrite readCharacteristic(characteristic) failed");
-                    }
-                } else {
-                    Log.e(TAG, "onDescriptorWrite characteristic==null");
-                }
-            } else {
-                Log.e(TAG, "onDescriptorWrite received: " + status);
-            }
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            post(GattEventRing.EVENT_SERVICES_DISCOVERED, gatt, null, status, 0, 0);
         }
 
         /**
-         * this function is called AFTER characteristic was read
+         * The device's services changed.  {@code BluetoothGattCallback} declares this from
+         * API 31 on, where it is called even though it can not be marked as an override here.
          */
+        public void onServiceChanged(BluetoothGatt gatt) {
+            post(GattEventRing.EVENT_SERVICE_CHANGED, gatt, null, BluetoothGatt.GATT_SUCCESS,
+                    0, 0);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            post(GattEventRing.EVENT_DESCRIPTOR_WRITE, gatt, descriptor, status, 0, 0);
+        }
+
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (characteristic.getValue()!=null){
-                    Log.e(TAG, "onCharacteristicRead: characteristic.getProperties() = " + characteristic.getProperties());
-                    Log.e(TAG, "onCharacteristicRead: characteristic.getUuid() = " + characteristic.getUuid());
-                    Log.e(TAG, "onCharacteristicRead: characteristic.getValue().length = " +characteristic.getValue().length);
-                    final byte[] data = characteristic.getValue();
-                    if (data != null && data.length > 0) {
-                        Log.e(TAG,"onCharacteristicRead: " + new String(data)+ bytesToHex(data));
-                    }
-                    if (bleAuthorizationSent){
-                        broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-                    } else if (characteristic.getUuid().equals(StarcomUUID.READ.getmUUID())){
-                        byte[] token = Sha256.getSHA256Token(characteristic.getValue());
-                        if (token!=null){
-                            writeCharacteristic(token);
-                        }
-                    }
-                }
-            } else  {
-                Log.e(TAG,"onCharacteristicRead failed");
-            }
+            post(GattEventRing.EVENT_CHARACTERISTIC_READ, gatt, characteristic, status);
         }
 
-        /**
-         * this function is called after write characteristic
-         */
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (bleAuthorizationSent){
-//                    sendCommand(BLECommand.ReadVersion); //CHECKS IF THE AUTHENTICATION WAS SUCCESSFUL
-                }
-            } else  {
-                Log.e(TAG,"onCharacteristicWrite failed");
-            }
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            post(GattEventRing.EVENT_CHARACTERISTIC_WRITE, gatt, characteristic, status, 0, 0);
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            Log.e(TAG,"onCharacteristicChanged");
-            if (characteristic.getValue()!=null ){
-                Log.e(TAG, "onCharacteristicChanged: characteristic.getProperties() = " + characteristic.getProperties());
-                Log.e(TAG, "onCharacteristicChanged: characteristic.getUuid() = " + characteristic.getUuid());
-                Log.e(TAG, "onCharacteristicChanged: characteristic.getValue().length = " +characteristic.getValue().length);
-                final byte[] data = characteristic.getValue();
-                if (data != null && data.length > 0) {
-                    Log.e(TAG,"onCharacteristicChanged: " + new String(data));
+            post(GattEventRing.EVENT_CHARACTERISTIC_CHANGED, gatt, characteristic,
+                    BluetoothGatt.GATT_SUCCESS);
+        }
+    }
+
+    /**
+     * Handles one callback of {@code connection}, on the connection's thread.
+     */
+    private void onGattEvent(GattConnection connection, GattEventRing.Event event) {
+        if (connection.isClosed()) {
+            return;
+        }
+        connection.touch();
+        BluetoothGatt gatt = event.mGatt;
+        switch (event.mType) {
+            case GattEventRing.EVENT_CONNECTION_STATE:
+                onConnectionStateChange(connection, gatt, event.mStatus, event.mArg0);
+                break;
+            case GattEventRing.EVENT_READ_RSSI:
+                if (event.mStatus == BluetoothGatt.GATT_SUCCESS) {
+                    BleTrace.d(BleTrace.EVENT_RSSI, connection.mAddress, event.mArg0, 0, 0);
                 }
-                if (bleAuthorizationSent){
-                    broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-                } else{
-                    byte[] token = Sha256.getSHA256Token(characteristic.getValue());
-                    if (token!=null){
-                        writeCharacteristic(token);
-                    }
+                break;
+            case GattEventRing.EVENT_MTU_CHANGED:
+                if (event.mStatus == BluetoothGatt.GATT_SUCCESS) {
+                    BleTrace.i(BleTrace.EVENT_MTU, connection.mAddress, event.mArg0, 0, 0);
+                    connection.mCommandCodec.setMtu(event.mArg0);
                 }
+                connection.mOperationQueue.onMtuChanged(event.mStatus);
+                break;
+            case GattEventRing.EVENT_PHY_UPDATE:
+                if (event.mStatus == BluetoothGatt.GATT_SUCCESS) {
+                    BleTrace.i(BleTrace.EVENT_PHY, connection.mAddress, event.mArg0,
+                            event.mArg1, 0);
+                }
+                connection.mOperationQueue.onPhyUpdate(event.mStatus);
+                break;
+            case GattEventRing.EVENT_SERVICES_DISCOVERED:
+                onServicesDiscovered(connection, gatt, event.mStatus);
+                break;
+            case GattEventRing.EVENT_SERVICE_CHANGED:
+                onServiceChanged(connection, gatt);
+                break;
+            case GattEventRing.EVENT_DESCRIPTOR_WRITE:
+                onDescriptorWrite(connection, gatt, (BluetoothGattDescriptor) event.mTarget,
+                        event.mStatus);
+                break;
+            case GattEventRing.EVENT_CHARACTERISTIC_READ:
+                mStats.add(ConnectionStats.COUNTER_BYTES_IN, event.mLength);
+                onCharacteristicRead(connection, (BluetoothGattCharacteristic) event.mTarget,
+                        event);
+                break;
+            case GattEventRing.EVENT_CHARACTERISTIC_WRITE:
+                BluetoothGattCharacteristic written = (BluetoothGattCharacteristic) event.mTarget;
+                connection.mOperationQueue.onCharacteristicWrite(written, event.mStatus);
+                if (event.mStatus != BluetoothGatt.GATT_SUCCESS) {
+                    BleTrace.w(BleTrace.EVENT_WRITE_FAILED, connection.mAddress,
+                            BleTrace.shortUuid(written.getUuid()), event.mStatus, 0);
+                }
+                break;
+            case GattEventRing.EVENT_CHARACTERISTIC_CHANGED:
+                mStats.add(ConnectionStats.COUNTER_BYTES_IN, event.mLength);
+                onCharacteristicChanged(connection, event);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onConnectionStateChange(GattConnection connection, BluetoothGatt gatt,
+                                         int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            connection.mConnectionState = GattConnection.STATE_CONNECTED;
+            mKnownDevices.onConnected(connection.mAddress, System.currentTimeMillis());
+            mEventBus.post(GattEventBus.EVENT_CONNECTED, connection.mAddress);
+            BleTrace.i(BleTrace.EVENT_CONNECTED, connection.mAddress, status, 0, 0);
+            connection.mHandshake.reset(Handshake.PHASE_CONNECTED);
+            connection.mLayoutRefreshed = false;
+            if (reuseLayout(connection, gatt)) {
+                BleTrace.i(BleTrace.EVENT_LAYOUT_REUSED, connection.mAddress, 0, 0, 0);
+                onLayoutReady(connection, gatt);
+            } else if (!gatt.discoverServices()) {
+                // Attempts to discover services after successful connection.
+                connection.mHandshake.fail(Handshake.PHASE_CONNECTED,
+                        "service discovery refused");
+            }
+
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            mStats.increment(ConnectionStats.COUNTER_DISCONNECTS);
+            connection.mConnectionState = GattConnection.STATE_DISCONNECTED;
+            connection.mHandshake.reset(Handshake.PHASE_DISCONNECTED);
+            connection.mCommandDispatcher.setHeld(true);
+            BulkTransfer transfer = connection.mBulkTransfer;
+            if (transfer != null) {
+                transfer.fail(PendingCommand.FAILURE_DISCONNECTED);
             }
+            connection.mCommandDispatcher.failAll(PendingCommand.FAILURE_DISCONNECTED);
+            connection.mOperationQueue.clear();
+            resetFrames(connection);
+            BleTrace.i(BleTrace.EVENT_DISCONNECTED, connection.mAddress, status, 0, 0);
+            mEventBus.post(GattEventBus.EVENT_DISCONNECTED, connection.mAddress);
         }
-    };
+    }
 
     /**
-     * this function writes characteristic to WRITE!!
-     * @param data - the value to insert
+     * this function is called after services are discovered
      */
-    private void writeCharacteristic(byte[] data) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    private void onServicesDiscovered(GattConnection connection, BluetoothGatt gatt,
+                                      int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            BluetoothGattService service = gatt.getService(StarcomUUID.SERVICE.getmUUID());
+            if (service == null
+                    || service.getCharacteristic(StarcomUUID.READ.getmUUID()) == null) {
+                rediscover(connection, gatt, "UART service not found");
+                return;
+            }
+            // Only the UART service is compared; the whole layout is walked only when it
+            // is not cached yet or has changed.
+            GattLayout layout = mLayoutCache.get(connection.mAddress);
+            GattLayout.Service cached = layout != null
+                    ? layout.findService(StarcomUUID.SERVICE.getmUUID()) : null;
+            if (cached == null || !cached.matches(service)) {
+                mLayoutCache.put(connection.mAddress, GattLayout.from(gatt.getServices()));
+            }
+            if (connection.mHandshake.getPhase() == Handshake.PHASE_CONNECTED) {
+                onLayoutReady(connection, gatt);
+            } else {
+                // Rediscovered after a service change on a ready connection.
+                mEventBus.post(GattEventBus.EVENT_SERVICES_DISCOVERED, connection.mAddress);
+            }
+        } else {
+            connection.mHandshake.fail(Handshake.PHASE_CONNECTED,
+                    "service discovery failed with status " + status);
+        }
+    }
+
+    private void onServiceChanged(GattConnection connection, BluetoothGatt gatt) {
+        BleTrace.i(BleTrace.EVENT_SERVICES_CHANGED, connection.mAddress, 0, 0, 0);
+        mLayoutCache.invalidate(connection.mAddress);
+        connection.mLayoutFromCache = false;
+        int phase = connection.mHandshake.getPhase();
+        if (phase == Handshake.PHASE_READY || phase == Handshake.PHASE_CONNECTED) {
+            gatt.discoverServices();
+        } else {
+            // The handshake may already rely on handles that moved; start over.
+            connection.mHandshake.fail(phase, "services changed during the handshake");
+        }
+    }
+
+    /**
+     * this function is called AFTER on description was written
+     */
+    private void onDescriptorWrite(GattConnection connection, BluetoothGatt gatt,
+                                   BluetoothGattDescriptor descriptor, int status) {
+        connection.mOperationQueue.onDescriptorWrite(descriptor, status);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            if (!connection.mHandshake.advance(Handshake.PHASE_DISCOVERED,
+                    Handshake.PHASE_NOTIFYING)) {
+                return;
+            }
+            // The seed may come as a notification as well; whichever arrives first is used.
+            BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+            if (characteristic!=null){
+                if (!readCharacteristic(connection, characteristic)){
+                    BleTrace.w(BleTrace.EVENT_SEED_READ_NOT_QUEUED, connection.mAddress,
+                            BleTrace.shortUuid(characteristic.getUuid()), 0, 0);
+                }
+            } else {
+                BleTrace.w(BleTrace.EVENT_NO_CHARACTERISTIC, connection.mAddress, 0, 0, 0);
+            }
+        } else if (connection.mLayoutFromCache) {
+            rediscover(connection, gatt, "CCCD write failed on the cached layout");
+        } else {
+            connection.mHandshake.fail(Handshake.PHASE_DISCOVERED,
+                    "CCCD write failed with status " + status);
+        }
+    }
+
+    /**
+     * this function is called AFTER characteristic was read
+     */
+    private void onCharacteristicRead(GattConnection connection,
+                                      BluetoothGattCharacteristic characteristic,
+                                      GattEventRing.Event event) {
+        connection.mOperationQueue.onCharacteristicRead(characteristic, event.mStatus);
+        if (event.mStatus == BluetoothGatt.GATT_SUCCESS) {
+            if (event.mHasData){
+                final byte[] data = event.mData;
+                BleTrace.v(BleTrace.EVENT_READ, connection.mAddress,
+                        BleTrace.shortUuid(characteristic.getUuid()), event.mLength,
+                        BleTrace.head(data, event.mLength));
+                int phase = connection.mHandshake.getPhase();
+                if (phase >= Handshake.PHASE_SEED_RECEIVED) {
+                    mEventBus.post(GattEventBus.EVENT_DATA_AVAILABLE, connection.mAddress,
+                            data, 0, event.mLength);
+                } else if (phase == Handshake.PHASE_NOTIFYING
+                        && characteristic.getUuid().equals(StarcomUUID.READ.getmUUID())) {
+                    onSeed(connection, data, event.mLength);
+                }
+            }
+        } else  {
+            BleTrace.w(BleTrace.EVENT_READ_FAILED, connection.mAddress,
+                    BleTrace.shortUuid(characteristic.getUuid()), event.mStatus, 0);
+        }
+    }
+
+    private void onCharacteristicChanged(GattConnection connection, GattEventRing.Event event) {
+        final byte[] data = event.mData;
+        if (connection.mBulkTransfer != null) {
+            // Records are framed and handed to the transfer without per-packet logging;
+            // the transfer flushes the last one itself once the link goes quiet.
+            if (event.mHasData) {
+                synchronized (connection.mFrameAssembler) {
+                    connection.mFrameAssembler.append(data, 0, event.mLength);
+                }
+            }
+            return;
+        }
+        if (event.mHasData){
+            BluetoothGattCharacteristic characteristic =
+                    (BluetoothGattCharacteristic) event.mTarget;
+            BleTrace.v(BleTrace.EVENT_NOTIFICATION, connection.mAddress,
+                    BleTrace.shortUuid(characteristic.getUuid()), event.mLength,
+                    BleTrace.head(data, event.mLength));
+            int phase = connection.mHandshake.getPhase();
+            if (phase >= Handshake.PHASE_SEED_RECEIVED) {
+                synchronized (connection.mFrameAssembler) {
+                    connection.mFrameAssembler.append(data, 0, event.mLength);
+                }
+                connection.mHandler.removeCallbacks(connection.mFrameFlushRunnable);
+                connection.mHandler.postDelayed(connection.mFrameFlushRunnable,
+                        FRAME_FLUSH_DELAY_MS);
+            } else if (phase == Handshake.PHASE_NOTIFYING) {
+                onSeed(connection, data, event.mLength);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a reconnected {@code BluetoothGatt} still holds the services of its last
+     * discovery, and that they match the cached layout, in which case discovery is skipped.
+     */
+    private boolean reuseLayout(GattConnection connection, BluetoothGatt gatt) {
+        GattLayout layout = mLayoutCache.get(connection.mAddress);
+        GattLayout.Service cached = layout != null
+                ? layout.findService(StarcomUUID.SERVICE.getmUUID()) : null;
+        BluetoothGattService service = cached != null
+                ? gatt.getService(StarcomUUID.SERVICE.getmUUID()) : null;
+        connection.mLayoutFromCache = service != null && cached.matches(service);
+        return connection.mLayoutFromCache;
+    }
+
+    /**
+     * Services are known, from a discovery or the cache: starts the handshake by enabling
+     * notifications on the READ characteristic.
+     */
+    private void onLayoutReady(GattConnection connection, BluetoothGatt gatt) {
+        if (!connection.mHandshake.advance(Handshake.PHASE_CONNECTED,
+                Handshake.PHASE_DISCOVERED)) {
+            return;
+        }
+        mEventBus.post(GattEventBus.EVENT_SERVICES_DISCOVERED, connection.mAddress);
+        BluetoothGattCharacteristic characteristicRead =
+                gatt.getService(StarcomUUID.SERVICE.getmUUID())
+                        .getCharacteristic(StarcomUUID.READ.getmUUID());
+        setCharacteristicNotification(connection, characteristicRead, true);
+    }
+
+    /**
+     * Drops the cached layout after a failed lookup and, once per session, clears the stack's
+     * own service cache and discovers again.
+     */
+    private void rediscover(GattConnection connection, BluetoothGatt gatt, String reason) {
+        mLayoutCache.invalidate(connection.mAddress);
+        connection.mLayoutFromCache = false;
+        int phase = connection.mHandshake.getPhase();
+        if (connection.mLayoutRefreshed) {
+            connection.mHandshake.fail(phase, reason);
+            return;
+        }
+        connection.mLayoutRefreshed = true;
+        connection.mHandshake.advance(Handshake.PHASE_DISCOVERED, Handshake.PHASE_CONNECTED);
+        Log.w(TAG, connection.mAddress + ": " + reason + ", discovering services again.");
+        refreshDeviceCache(gatt);
+        gatt.discoverServices();
+    }
+
+    /**
+     * Clears the stack's cache of the device's services through the hidden
+     * {@code BluetoothGatt.refresh()}, so the next discovery asks the device.
+     */
+    private static void refreshDeviceCache(BluetoothGatt gatt) {
+        try {
+            gatt.getClass().getMethod("refresh").invoke(gatt);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to refresh the GATT cache: " + e);
+        }
+    }
+
+    /**
+     * Called for every complete reply reassembled from the notifications of a connection.
+     */
+    private void onFrame(GattConnection connection, byte[] buffer, int offset, int length) {
+        BLECommand answered = connection.mCommandDispatcher.onFrame(buffer, offset, length);
+        BulkTransfer transfer = connection.mBulkTransfer;
+        if (transfer != null) {
+            transfer.onRecord(buffer, offset, length);
+            return;
+        }
+        ProtocolRegistry.dispatch(connection.mAddress, answered, buffer, offset, length);
+        mEventBus.post(GattEventBus.EVENT_DATA_AVAILABLE, connection.mAddress,
+                buffer, offset, length);
+    }
+
+    private void resetFrames(GattConnection connection) {
+        connection.mHandler.removeCallbacks(connection.mFrameFlushRunnable);
+        synchronized (connection.mFrameAssembler) {
+            connection.mFrameAssembler.reset();
+            BleTrace.i(BleTrace.EVENT_FRAMES, connection.mAddress,
+                    connection.mFrameAssembler.getFrameCount(),
+                    connection.mFrameAssembler.getPartialFrameCount(),
+                    connection.mFrameAssembler.getOverflowCount());
+        }
+    }
+
+    /**
+     * Answers the seed sent by the device with the authorization token.  The token is computed
+     * into the connection's own buffer, which stays untouched until the queued write is done.
+     * Only the first seed of a handshake is answered.
+     */
+    private void onSeed(final GattConnection connection, byte[] seed, int length) {
+        if (!connection.mHandshake.advance(Handshake.PHASE_NOTIFYING,
+                Handshake.PHASE_SEED_RECEIVED)) {
+            return;
+        }
+        if (!Sha256.getSHA256Token(seed, 0, length, connection.mToken, 0)) {
+            BleTrace.w(BleTrace.EVENT_TOKEN_FAILED, connection.mAddress, length, 0, 0);
+            connection.mHandshake.fail(Handshake.PHASE_SEED_RECEIVED, "unusable seed");
+            return;
+        }
+        GattOperationQueue.Operation write = GattOperationQueue.Operation.write(
+                StarcomUUID.SERVICE.getmUUID(), StarcomUUID.WRITE.getmUUID(), connection.mToken)
+                .setListener(new GattOperationQueue.Listener() {
+                    @Override
+                    public void onOperationDone(GattOperationQueue.Operation operation,
+                                                boolean success) {
+                        if (success) {
+                            onTokenWritten(connection);
+                        } else {
+                            connection.mHandshake.fail(Handshake.PHASE_SEED_RECEIVED,
+                                    "token write failed");
+                        }
+                    }
+                });
+        if (!connection.mOperationQueue.enqueue(write)) {
+            connection.mHandshake.fail(Handshake.PHASE_SEED_RECEIVED, "token write not queued");
+        }
+    }
+
+    /**
+     * The device accepted the token write; a version query, sent ahead of any held command,
+     * confirms that it also accepted the token, as it only answers once authorized.
+     */
+    private void onTokenWritten(final GattConnection connection) {
+        if (!connection.mHandshake.advance(Handshake.PHASE_SEED_RECEIVED,
+                Handshake.PHASE_TOKEN_SENT)) {
+            return;
         }
-        BluetoothGattCharacteristic characteristic =
-                mBluetoothGatt.getService(StarcomUUID.SERVICE.getmUUID())
-                        .getCharacteristic(StarcomUUID.WRITE.getmUUID());
-        characteristic.setValue(data);
-        if (!mBluetoothGatt.writeCharacteristic(characteristic)){
-            Log.e(TAG,"writeCharacteristic: mBluetoothGatt.writeCharacteristic(" + characteristic.getUuid() + "): - false");
-        }else {
-            bleAuthorizationSent = true;
+        connection.mCommandDispatcher.submitUrgent(BLECommand.ReadVersion,
+                AUTHENTICATION_DEADLINE_MS, new PendingCommand.Callback() {
+                    // Delivered on the main thread; the handshake moves on on the connection's.
+                    @Override
+                    public void onResponse(PendingCommand command, byte[] response) {
+                        connection.mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (connection.mHandshake.advance(Handshake.PHASE_TOKEN_SENT,
+                                        Handshake.PHASE_AUTHENTICATED)) {
+                                    mKnownDevices.onAuthResult(connection.mAddress,
+                                            KnownDeviceRegistry.AUTH_OK);
+                                    connection.mHandshake.advance(Handshake.PHASE_AUTHENTICATED,
+                                            Handshake.PHASE_READY);
+                                    connection.mCommandDispatcher.setHeld(false);
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFailure(PendingCommand command, final int reason) {
+                        connection.mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                connection.mHandshake.fail(Handshake.PHASE_TOKEN_SENT,
+                                        "no answer to the version check (" + reason + ")");
+                            }
+                        });
+                    }
+                });
+    }
+
+    // Fails fast: held commands are failed and the link is dropped, so the next connect
+    // starts a fresh handshake.
+    private final Handshake.Listener mHandshakeListener = new Handshake.Listener() {
+        @Override
+        public void onPhaseChanged(GattConnection connection, int from, int to,
+                                   long elapsedNanos) {
+            BleTrace.d(BleTrace.EVENT_PHASE, connection.mAddress, from, to,
+                    elapsedNanos / 1000);
+            recordPhase(connection, from, to, elapsedNanos);
         }
 
+        @Override
+        public void onFailed(GattConnection connection, int phase, String reason) {
+            mStats.increment(ConnectionStats.COUNTER_HANDSHAKE_FAILURES);
+            Log.w(TAG, connection.mAddress + ": handshake failed in " + Handshake.name(phase)
+                    + ": " + reason);
+            // Prints the events that led there.
+            BleTrace.e(BleTrace.EVENT_HANDSHAKE_FAILED, connection.mAddress, phase, 0, 0);
+            if (phase >= Handshake.PHASE_SEED_RECEIVED) {
+                mKnownDevices.onAuthResult(connection.mAddress, KnownDeviceRegistry.AUTH_FAILED);
+            }
+            connection.mHandshake.reset(Handshake.PHASE_DISCONNECTED);
+            connection.mCommandDispatcher.setHeld(true);
+            connection.mCommandDispatcher.failAll(PendingCommand.FAILURE_HANDSHAKE);
+            connection.mConnectionState = GattConnection.STATE_DISCONNECTED;
+            BluetoothGatt gatt = connection.mBluetoothGatt;
+            if (gatt != null) {
+                gatt.disconnect();
+            }
+        }
+    };
 
+    /**
+     * Times the step of the handshake that just ended.  Only forward steps count; going back
+     * to rediscover starts the discovery over.
+     */
+    private void recordPhase(GattConnection connection, int from, int to, long elapsedNanos) {
+        int metric;
+        switch (to) {
+            case Handshake.PHASE_CONNECTING:
+                connection.mConnectStart = System.nanoTime();
+                return;
+            case Handshake.PHASE_CONNECTED:
+                metric = from == Handshake.PHASE_CONNECTING ? ConnectionStats.METRIC_CONNECT : -1;
+                break;
+            case Handshake.PHASE_DISCOVERED:
+                metric = ConnectionStats.METRIC_DISCOVERY;
+                break;
+            case Handshake.PHASE_NOTIFYING:
+                metric = ConnectionStats.METRIC_CCCD_WRITE;
+                break;
+            case Handshake.PHASE_SEED_RECEIVED:
+                metric = ConnectionStats.METRIC_SEED_READ;
+                break;
+            case Handshake.PHASE_TOKEN_SENT:
+                metric = ConnectionStats.METRIC_TOKEN_WRITE;
+                break;
+            case Handshake.PHASE_AUTHENTICATED:
+                metric = ConnectionStats.METRIC_FIRST_REPLY;
+                break;
+            case Handshake.PHASE_READY:
+                mStats.record(ConnectionStats.METRIC_HANDSHAKE,
+                        System.nanoTime() - connection.mConnectStart);
+                return;
+            default:
+                return;
+        }
+        if (metric >= 0) {
+            mStats.record(metric, elapsedNanos);
+        }
     }
 
-    private void sendCommand(BLECommand bleCommand) {
-        BluetoothGattCharacteristic characteristic =
-                mBluetoothGatt.getService(StarcomUUID.SERVICE.getmUUID())
-                        .getCharacteristic(StarcomUUID.WRITE.getmUUID());
+    /**
+     * Sends a command to a connected device and waits asynchronously for its answer, using the
+     * default deadline.
+     *
+     * @see #sendCommand(String, BLECommand, long, PendingCommand.Callback)
+     */
+    public PendingCommand sendCommand(String address, BLECommand bleCommand,
+                                      PendingCommand.Callback callback) {
+        return sendCommand(address, bleCommand, CommandDispatcher.DEFAULT_DEADLINE_MS, callback);
+    }
 
-        characteristic.setValue(BLECommand.getData(bleCommand.getValue()));
+    /**
+     * Sends a command to a connected device.  Several commands may be outstanding at once
+     * (see {@link #setMaxInFlightCommands(String, int)}); each notification from the device is
+     * matched to the command it answers.  Commands sent before the handshake is complete are
+     * held and written once the connection is ready, or fail with
+     * {@link PendingCommand#FAILURE_HANDSHAKE}.
+     *
+     * @param address The device address of the connection to send on.
+     * @param bleCommand The command to send.
+     * @param deadlineMs How long the device has to answer once the command is written.
+     * @param callback Receives the response or failure on the main thread.  May be null.
+     * @return A handle to the command, or null if there is no connection to {@code address}.
+     */
+    public PendingCommand sendCommand(String address, BLECommand bleCommand, long deadlineMs,
+                                      PendingCommand.Callback callback) {
+        GattConnection connection = mConnectionPool.get(address);
+        if (connection == null || connection.mBluetoothGatt == null) {
+            Log.w(TAG, "sendCommand(" + bleCommand.getValue() + "): not connected to " + address);
+            return null;
+        }
 //        characteristicWrite.setWriteType(WRITE_TYPE_SIGNED);
-        if (!mBluetoothGatt.writeCharacteristic(characteristic)){
-            Log.e(TAG,"sendCommand: mBluetoothGatt.writeCharacteristic(" + characteristic.getUuid() + "): - false");
+        return connection.mCommandDispatcher.submit(bleCommand, deadlineMs, callback);
+    }
+
+    /**
+     * Sends a parameterized command such as {@link BLECommand#CropXGetQueue}, encoded as
+     * {@code "<value>:<argument>"}.
+     *
+     * @see #sendCommand(String, BLECommand, long, PendingCommand.Callback)
+     */
+    public PendingCommand sendCommand(String address, BLECommand bleCommand, int argument,
+                                      long deadlineMs, PendingCommand.Callback callback) {
+        GattConnection connection = mConnectionPool.get(address);
+        if (connection == null || connection.mBluetoothGatt == null) {
+            Log.w(TAG, "sendCommand(" + bleCommand.getValue() + "): not connected to " + address);
+            return null;
         }
+        return connection.mCommandDispatcher.submit(bleCommand, argument, deadlineMs, callback);
     }
 
-    private boolean bleAuthorizationSent = false;
+    /**
+     * Drains record queue {@code queue} of a connected, authorized device in bulk transfer
+     * mode.  Only one transfer runs per connection; other commands should not be sent until
+     * it ends.
+     *
+     * @return The running transfer, or null if there is no connection to {@code address} or
+     *         a transfer is already running on it.
+     */
+    public BulkTransfer downloadQueue(String address, int queue, BulkTransfer.Consumer consumer) {
+        GattConnection connection = mConnectionPool.get(address);
+        if (connection == null || connection.mBluetoothGatt == null
+                || !connection.mHandshake.isReady()) {
+            Log.w(TAG, "downloadQueue(" + queue + "): not connected to " + address);
+            return null;
+        }
+        BulkTransfer transfer;
+        synchronized (connection) {
+            if (connection.mBulkTransfer != null) {
+                Log.w(TAG, "downloadQueue(" + queue + "): transfer already running");
+                return null;
+            }
+            transfer = new BulkTransfer(connection, queue, consumer);
+            connection.mBulkTransfer = transfer;
+        }
+        connection.mHandler.removeCallbacks(connection.mFrameFlushRunnable);
+        transfer.start();
+        return transfer;
+    }
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    /**
+     * Like {@link #downloadQueue(String, int, BulkTransfer.Consumer)}, but continues from the
+     * checkpoint left by earlier drains of the same queue: records that were already committed
+     * are not handed to {@code consumer} again, and the checkpoint advances as it accepts
+     * records.  Call again after a reconnect to resume an interrupted drain.
+     */
+    public BulkTransfer resumeQueueDownload(String address, int queue,
+                                            BulkTransfer.Consumer consumer) {
+        if (mDrainCheckpoints == null) {
+            Log.w(TAG, "resumeQueueDownload(" + queue + "): not initialized");
+            return null;
+        }
+        return downloadQueue(address, queue,
+                new CheckpointedConsumer(mDrainCheckpoints, address, queue, consumer));
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
+    /**
+     * Drains record queue {@code queue} like
+     * {@link #resumeQueueDownload(String, int, BulkTransfer.Consumer)} and appends the decoded
+     * records to the {@link #getReadingStore() reading store}, batch by batch.
+     *
+     * @param listener Called on the transfer's worker thread when the drain ends.  May be null.
+     * @return The running transfer, or null if the store is not open yet, there is no
+     *         connection to {@code address} or a transfer is already running on it.
+     */
+    public BulkTransfer storeQueue(final String address, int queue,
+                                   RecordDecodingConsumer.Listener listener) {
+        final ReadingStore store = mReadingStore;
+        if (store == null) {
+            Log.w(TAG, "storeQueue(" + queue + "): the reading store is not open");
+            return null;
+        }
+        QueueRecordDecoder decoder = new QueueRecordDecoder(0,
+                QueueRecordDecoder.DEFAULT_BATCH_CAPACITY, new QueueRecordDecoder.BatchListener() {
+                    @Override
+                    public void onBatch(RecordBatch batch) {
+                        try {
+                            store.append(address, batch);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Unable to store queue records: " + e.getMessage());
+                        }
+                    }
+                });
+        return resumeQueueDownload(address, queue, new RecordDecodingConsumer(decoder, listener));
+    }
 
-//         This is special handling for the Heart Rate Measurement profile.  Data parsing is
-//         carried out as per profile specifications:
-//         http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        final byte[] data = characteristic.getValue();
-        if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for(byte byteChar : data)
-                stringBuilder.append(String.format("%02X ", byteChar));
-            Log.e(TAG,"broadcastUpdate: " + new String(data));
-            intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+    /**
+     * Sets how many commands may await a response at the same time on one connection.
+     */
+    public void setMaxInFlightCommands(String address, int maxInFlight) {
+        GattConnection connection = mConnectionPool.get(address);
+        if (connection != null) {
+            connection.mCommandDispatcher.setMaxInFlight(maxInFlight);
         }
-        sendBroadcast(intent);
     }
 
     public class LocalBinder extends Binder {
@@ -313,18 +862,174 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        mKnownDevices = KnownDeviceRegistry.getInstance(this);
+        if (mLayoutCache == null) {
+            mLayoutCache = new GattLayoutCache(this);
+        }
+        if (mDrainCheckpoints == null) {
+            mDrainCheckpoints = new DrainCheckpoints(this);
+        }
+        if (!mReadingStoreOpening) {
+            mReadingStoreOpening = true;
+            mResponseParser.register();
+            // Opening reads every stored record to rebuild the index, far too long for the
+            // main thread; readings parsed until it is open are aggregated but not stored.
+            final File directory = new File(getFilesDir(), READINGS_DIRECTORY);
+            new Thread("ReadingStore") {
+                @Override
+                public void run() {
+                    openReadingStore(directory);
+                }
+            }.start();
+        }
+
         return true;
     }
 
+    private void openReadingStore(File directory) {
+        ReadingStore store;
+        try {
+            store = new ReadingStore(directory);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the reading store: " + e.getMessage());
+            return;
+        }
+        // Archives the segments sealed since the last start while nothing appends yet, as
+        // appends would wait for it.
+        try {
+            store.compact(Long.MIN_VALUE);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact the reading store: " + e.getMessage());
+        }
+        synchronized (mReadingStoreLock) {
+            if (!mDestroyed) {
+                mReadingStore = store;
+                return;
+            }
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close the reading store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the local store of readings, or null until {@link #initialize()} has opened it
+     *         in the background, or if it could not be opened.
+     */
+    public ReadingStore getReadingStore() {
+        return mReadingStore;
+    }
+
+    /**
+     * @return every sensor seen or connected to so far; any of them can be passed to
+     *         {@link #connect(String)} without scanning first.
+     */
+    public KnownDeviceRegistry getKnownDevices() {
+        return mKnownDevices;
+    }
+
+    /**
+     * @return the GATT layout of {@code address} as of its last discovery, or null if it has
+     *         not been discovered yet or has changed since.
+     */
+    public GattLayout getGattLayout(String address) {
+        return mLayoutCache != null ? mLayoutCache.get(address) : null;
+    }
+
+    /**
+     * @return a copy of the latencies and counters of every connection since the service
+     *         started, or since the last {@code adb shell dumpsys activity service
+     *         BluetoothLeService reset}.
+     */
+    public ConnectionStats getConnectionStats() {
+        return mStats.snapshot();
+    }
+
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Prints the connection statistics, the state of each pooled connection, the size of the
+     * reading store and the recent trace events, for
+     * {@code adb shell dumpsys activity service BluetoothLeService}.  Pass {@code reset} to
+     * clear the statistics once printed, or {@code log <level>} to change what
+     * {@link BleTrace} prints to logcat.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Connection stats:");
+        mStats.dump(writer, "  ");
+        writer.println("Connections:");
+        for (GattConnection connection : mConnectionPool.snapshot()) {
+            writer.println("  " + connection.mAddress + ": "
+                    + Handshake.name(connection.mHandshake.getPhase()) + ", "
+                    + connection.mOperationQueue.size() + " operations, "
+                    + connection.mCommandDispatcher.size() + " commands, "
+                    + connection.mEvents.getOverflowCount() + " callbacks overflowed");
+        }
+        ReadingStore store = mReadingStore;
+        if (store != null) {
+            writer.println("Reading store:");
+            store.dump(writer, "  ");
+        }
+        writer.println("Recent events:");
+        BleTrace.dump(writer, "  ");
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            mStats.reset();
+            writer.println("Stats reset.");
+        } else if (args != null && args.length > 1 && "log".equals(args[0])) {
+            try {
+                BleTrace.setLogLevel(Integer.parseInt(args[1]));
+                writer.println("Log level set to " + args[1] + ".");
+            } catch (NumberFormatException e) {
+                writer.println("Usage: log <level>, 2 (verbose) to 7 (assert), 8 for none.");
+            }
+        }
+    }
+
+    /**
+     * @return the rolling statistics of every probe heard from since the service started.
+     */
+    public ReadingAggregator getAggregator() {
+        return mAggregator;
+    }
+
+    @Override
+    public void onDestroy() {
+        ReadingStore store;
+        synchronized (mReadingStoreLock) {
+            mDestroyed = true;
+            store = mReadingStore;
+            mReadingStore = null;
+        }
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close the reading store: " + e.getMessage());
+            }
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Sets how many GATT sessions may be open at once.  Opening a connection beyond the cap
+     * evicts the least recently used idle one.
+     */
+    public void setMaxConnections(int maxConnections) {
+        mConnectionPool.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device.  Each address gets its
+     * own session, so several devices can be connected at the same time.
      *
      * @param address The device address of the destination device.
      *
      * @return Return true if the connection is initiated successfully. The connection result
      *         is reported asynchronously through the
      *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     *         callback.
+     *         callback.  Reconnecting a pooled connection is issued on the connection's thread,
+     *         so if the stack refuses it, the connection just goes back to disconnected.
      */
     public boolean connect(final String address) {
         if (mBluetoothAdapter == null || address == null) {
@@ -333,15 +1038,38 @@ public class BluetoothLeService extends Service {
         }
 
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
+        GattConnection connection = mConnectionPool.get(address);
+        if (connection != null && connection.mBluetoothGatt != null) {
+            if (connection.mConnectionState != GattConnection.STATE_DISCONNECTED) {
                 return true;
-            } else {
+            }
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for connection.");
+            connection.mConnectionState = GattConnection.STATE_CONNECTING;
+            connection.mHandshake.reset(Handshake.PHASE_CONNECTING);
+            final GattConnection target = connection;
+            target.mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    BluetoothGatt gatt = target.mBluetoothGatt;
+                    if (gatt == null || !gatt.connect()) {
+                        Log.w(TAG, target.mAddress + ": reconnect refused");
+                        target.mConnectionState = GattConnection.STATE_DISCONNECTED;
+                        target.mHandshake.reset(Handshake.PHASE_DISCONNECTED);
+                    }
+                }
+            });
+            return true;
+        }
+
+        if (mConnectionPool.isFull()) {
+            GattConnection evicted = mConnectionPool.evictIdle();
+            if (evicted == null) {
+                Log.w(TAG, "All " + mConnectionPool.getMaxConnections()
+                        + " connections are busy.  Unable to connect.");
                 return false;
             }
+            Log.i(TAG, "Evicting idle connection " + evicted.mAddress);
+            evicted.close();
         }
 
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
@@ -349,12 +1077,40 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
+        connection = new GattConnection(address, mHandler, mStats);
+        connection.mHandshake = new Handshake(connection, connection.mHandler,
+                mHandshakeListener);
+        final GattConnection newConnection = connection;
+        connection.mEvents = new GattEventRing(GattEventRing.DEFAULT_CAPACITY,
+                connection.mHandler, new GattEventRing.Consumer() {
+                    @Override
+                    public void onGattEvent(GattEventRing.Event event) {
+                        BluetoothLeService.this.onGattEvent(newConnection, event);
+                    }
+                });
+        connection.mFrameAssembler = FrameAssembler.delimited(FRAME_CAPACITY,
+                FrameAssembler.NEWLINE, new FrameAssembler.FrameListener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        BluetoothLeService.this.onFrame(newConnection, buffer, offset, length);
+                    }
+                });
+        connection.mFrameFlushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (newConnection.mFrameAssembler) {
+                    newConnection.mFrameAssembler.flush();
+                }
+            }
+        };
+        mConnectionPool.put(connection);
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+        connection.setBluetoothGatt(device.connectGatt(this, false,
+                new GattCallback(connection.mEvents)));
         Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        connection.mConnectionState = GattConnection.STATE_CONNECTING;
+        connection.mHandshake.reset(Handshake.PHASE_CONNECTING);
         return true;
     }
 
@@ -363,78 +1119,119 @@ public class BluetoothLeService extends Service {
      * is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
+     *
+     * @param address The device address of the connection to drop.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void disconnect(final String address) {
+        GattConnection connection = mConnectionPool.get(address);
+        if (mBluetoothAdapter == null || connection == null || connection.mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        final GattConnection target = connection;
+        target.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                BluetoothGatt gatt = target.mBluetoothGatt;
+                if (gatt != null) {
+                    gatt.disconnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the resources of the connection to a single device.
+     *
+     * @param address The device address of the connection to close.
+     */
+    public void close(final String address) {
+        GattConnection connection = mConnectionPool.remove(address);
+        if (connection == null) {
+            return;
+        }
+        connection.close();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * released properly.  Closes every pooled connection.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        for (GattConnection connection : mConnectionPool.removeAll()) {
+            connection.close();
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
      * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * callback.  The read is queued behind any GATT operation already in flight.
      *
+     * @param address The device address of the connection to read on.
      * @param characteristic The characteristic to read from.
+     * @return false if the read could not be queued.
      */
-    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public boolean readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+        GattConnection connection = mConnectionPool.get(address);
+        if (mBluetoothAdapter == null || connection == null || connection.mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return false;
         }
-        return mBluetoothGatt.readCharacteristic(characteristic);
+        return readCharacteristic(connection, characteristic);
+    }
+
+    private boolean readCharacteristic(GattConnection connection,
+                                       BluetoothGattCharacteristic characteristic) {
+        return connection.mOperationQueue.enqueue(GattOperationQueue.Operation.read(
+                characteristic.getService().getUuid(), characteristic.getUuid()));
     }
 
     /**
      * Enables or disables notification on a give characteristic.
      * THIS FUNCTION IS CALLED ONLY FOR THE READ CHARACTERISTIC!!!!
+     * @param address The device address of the connection to act on.
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+    public void setCharacteristicNotification(String address,
+                                              BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        GattConnection connection = mConnectionPool.get(address);
+        if (mBluetoothAdapter == null || connection == null || connection.mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
+        setCharacteristicNotification(connection, characteristic, enabled);
+    }
+
+    private void setCharacteristicNotification(GattConnection connection,
+                                               BluetoothGattCharacteristic characteristic,
+                                               boolean enabled) {
         if (characteristic != null) {
-            if (mBluetoothGatt.setCharacteristicNotification(characteristic, enabled)) {
+            if (connection.mBluetoothGatt.setCharacteristicNotification(characteristic, enabled)) {
 
-                BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(CHARACTERISTIC_NOTIFICATION_CONFIG));
+                BluetoothGattDescriptor descriptor = characteristic.getDescriptor(ProtocolRegistry.CLIENT_CHARACTERISTIC_CONFIG);
                 if (descriptor != null) {
+                    byte[] value;
                     // Prefer notify over indicate
                     if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
                         Log.d(TAG, "Characteristic " + StarcomUUID.getStarcomUUIDFromUUID(characteristic.getUuid()) + " set NOTIFY");
-                        descriptor.setValue(enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                        value = enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
                     } else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
                         Log.d(TAG, "Characteristic " + StarcomUUID.getStarcomUUIDFromUUID(characteristic.getUuid()) + " set INDICATE");
-                        descriptor.setValue(enabled ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                        value = enabled ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
                     } else {
                         Log.d(TAG, "Characteristic " + StarcomUUID.getStarcomUUIDFromUUID(characteristic.getUuid()) + " does not have NOTIFY or INDICATE property set");
+                        return;
                     }
 
-                    try {
-                        if (mBluetoothGatt.writeDescriptor(descriptor)) {
-                            Log.d(TAG, "setNotify complete");
-                        } else {
-                            Log.e(TAG,"Failed to set client characteristic notification for " + StarcomUUID.getStarcomUUIDFromUUID(characteristic.getUuid()));
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG,"Failed to set client characteristic notification for " + StarcomUUID.getStarcomUUIDFromUUID(characteristic.getUuid()) + ", error: " + e.getMessage());
+                    if (connection.mOperationQueue.enqueue(GattOperationQueue.Operation.writeDescriptor(
+                            characteristic.getService().getUuid(), characteristic.getUuid(),
+                            descriptor.getUuid(), value))) {
+                        Log.d(TAG, "setNotify queued");
+                    } else {
+                        Log.e(TAG,"Failed to set client characteristic notification for " + StarcomUUID.getStarcomUUIDFromUUID(characteristic.getUuid()));
                     }
 
                 } else {
@@ -454,11 +1251,13 @@ public class BluetoothLeService extends Service {
      * Retrieves a list of supported GATT services on the connected device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
      *
+     * @param address The device address of the connection to query.
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        GattConnection connection = mConnectionPool.get(address);
+        if (connection == null || connection.mBluetoothGatt == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return connection.mBluetoothGatt.getServices();
     }
 }
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.bluetoothlegatt.starcom.BLECommand;
+
+/**
+ * Drains one of the sensor's record queues ({@code get_queue:<n>}) as fast as the link allows.
+ *
+ * For the length of the transfer the link is switched to a large MTU, high connection priority
+ * and, from Oreo on, the 2M PHY; it is put back to balanced priority and the 1M PHY when the
+ * transfer ends.  (An MTU can not be renegotiated down, so it stays.)  Reassembled records
+ * bypass the event bus and per-packet logging and are copied into a set of slots, from which
+ * a worker thread hands them to the {@link Consumer}.  Records arrive on the connection's
+ * thread, which must never wait for the consumer, so when every slot is taken the slots double,
+ * up to {@link #MAX_SLOT_COUNT}.  A record that does not fit past that fails the transfer with
+ * {@link PendingCommand#FAILURE_OVERFLOW}: the records before it are still delivered, nothing
+ * after it is, so a consumer never sees a gap.  The transfer is complete once the link has been
+ * quiet for {@link #IDLE_TIMEOUT_MS} after the first record.
+ */
+public class BulkTransfer {
+    private final static String TAG = BulkTransfer.class.getSimpleName();
+
+    /**
+     * Receives the records of a transfer, in order, on the transfer's worker thread.
+     */
+    public interface Consumer {
+        /**
+         * Called for each record.  {@code buffer} is reused once the call returns.  Taking
+         * long here lets records pile up, and fails the transfer once
+         * {@link BulkTransfer#MAX_SLOT_COUNT} are waiting.
+         */
+        void onRecord(byte[] buffer, int offset, int length);
+
+        /**
+         * Called once the queue has been drained.
+         */
+        void onComplete(long records);
+
+        /**
+         * Called instead of {@link #onComplete(long)} if the transfer could not finish.  Every
+         * record received before the failure has been delivered.
+         *
+         * @param reason One of the {@code PendingCommand.FAILURE_*} constants.
+         */
+        void onFailure(long records, int reason);
+    }
+
+    static final int BULK_MTU = 517;
+    static final int SLOT_COUNT = 32;
+    static final int MAX_SLOT_COUNT = 1024;
+    static final int SLOT_CAPACITY = 256;
+    static final long IDLE_TIMEOUT_MS = 1000;
+    // Time the device has to start answering the get_queue command.
+    static final long START_DEADLINE_MS = 5000;
+
+    private final GattConnection mConnection;
+    private final int mQueue;
+    private final Consumer mConsumer;
+    private byte[][] mSlots = new byte[SLOT_COUNT][];
+    private int[] mLengths = new int[SLOT_COUNT];
+    private int mHead;
+    private int mCount;
+    private boolean mReceived;
+    private long mLastRecordTime;
+    private long mRecords;
+    private long mDropped;
+    private boolean mFinished;
+    private int mFailure;
+    private PendingCommand mCommand;
+
+    private final Thread mWorker = new Thread("BulkTransfer") {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    BulkTransfer(GattConnection connection, int queue, Consumer consumer) {
+        mConnection = connection;
+        mQueue = queue;
+        mConsumer = consumer;
+    }
+
+    public int getQueue() {
+        return mQueue;
+    }
+
+    /**
+     * @return the records dropped because the consumer fell too far behind; at most 1, as the
+     *         first drop fails the transfer.
+     */
+    public synchronized long getDroppedRecords() {
+        return mDropped;
+    }
+
+    /**
+     * Stops the transfer.  Records already received are still delivered, followed by
+     * {@link Consumer#onFailure(long, int)} with {@link PendingCommand#FAILURE_CANCELLED}.
+     */
+    public void cancel() {
+        fail(PendingCommand.FAILURE_CANCELLED);
+    }
+
+    /**
+     * Tunes the link, queues the MTU exchange and sends the get_queue command behind it.
+     */
+    void start() {
+        setHighThroughput(true);
+        mConnection.mOperationQueue.enqueue(GattOperationQueue.Operation.requestMtu(BULK_MTU)
+                .setMaxRetries(0));
+        mCommand = mConnection.mCommandDispatcher.submit(BLECommand.CropXGetQueue, mQueue,
+                START_DEADLINE_MS, new PendingCommand.Callback() {
+                    @Override
+                    public void onResponse(PendingCommand command, byte[] response) {
+                    }
+
+                    @Override
+                    public void onFailure(PendingCommand command, int reason) {
+                        fail(reason);
+                    }
+                });
+        mWorker.start();
+    }
+
+    /**
+     * Takes a reassembled record from the notification path.  Never blocks.
+     */
+    synchronized void onRecord(byte[] buffer, int offset, int length) {
+        if (mFinished) {
+            return;
+        }
+        if (mCount == mSlots.length) {
+            if (mSlots.length == MAX_SLOT_COUNT) {
+                // Delivering anything past a lost record would let the consumer commit over it.
+                mDropped++;
+                fail(PendingCommand.FAILURE_OVERFLOW);
+                return;
+            }
+            grow();
+        }
+        int slot = (mHead + mCount) % mSlots.length;
+        if (mSlots[slot] == null || mSlots[slot].length < length) {
+            mSlots[slot] = new byte[Math.max(length, SLOT_CAPACITY)];
+        }
+        System.arraycopy(buffer, offset, mSlots[slot], 0, length);
+        mLengths[slot] = length;
+        mCount++;
+        mReceived = true;
+        mLastRecordTime = SystemClock.elapsedRealtime();
+        notifyAll();
+    }
+
+    // Doubles the slots, moving the waiting records to the front.  The record the worker is
+    // handing over keeps its buffer, which stays taken until the worker releases it.
+    private void grow() {
+        int capacity = mSlots.length;
+        byte[][] slots = new byte[capacity * 2][];
+        int[] lengths = new int[capacity * 2];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = mSlots[(mHead + i) % capacity];
+            lengths[i] = mLengths[(mHead + i) % capacity];
+        }
+        mSlots = slots;
+        mLengths = lengths;
+        mHead = 0;
+    }
+
+    synchronized void fail(int reason) {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        mFailure = reason;
+        notifyAll();
+    }
+
+    private void drain() {
+        while (true) {
+            byte[] record;
+            int length;
+            synchronized (this) {
+                while (mCount == 0 && !mFinished) {
+                    long idle = mReceived ? SystemClock.elapsedRealtime() - mLastRecordTime : 0;
+                    if (mReceived && idle >= IDLE_TIMEOUT_MS) {
+                        break;
+                    }
+                    try {
+                        wait(mReceived ? IDLE_TIMEOUT_MS - idle : 0);
+                    } catch (InterruptedException e) {
+                        mFinished = true;
+                        mFailure = PendingCommand.FAILURE_CANCELLED;
+                    }
+                }
+                if (mCount == 0) {
+                    if (mFinished) {
+                        break;
+                    }
+                    // Quiet link: a last reply without a delimiter may still be in the
+                    // assembler.
+                    record = null;
+                    length = 0;
+                } else {
+                    record = mSlots[mHead];
+                    length = mLengths[mHead];
+                }
+            }
+            if (record == null) {
+                synchronized (mConnection.mFrameAssembler) {
+                    mConnection.mFrameAssembler.flush();
+                }
+                synchronized (this) {
+                    if (mCount == 0) {
+                        mFinished = true;
+                    }
+                }
+                continue;
+            }
+            mConsumer.onRecord(record, 0, length);
+            synchronized (this) {
+                mHead = (mHead + 1) % mSlots.length;
+                mCount--;
+                mRecords++;
+            }
+        }
+        finish();
+    }
+
+    private void finish() {
+        if (mConnection.mBulkTransfer == this) {
+            mConnection.mBulkTransfer = null;
+        }
+        if (mCommand != null) {
+            mCommand.cancel();
+        }
+        setHighThroughput(false);
+        long dropped = getDroppedRecords();
+        Log.i(TAG, mConnection.mAddress + ": queue " + mQueue + " drained " + mRecords
+                + " records" + (dropped != 0 ? ", dropped " + dropped : "")
+                + (mFailure != 0 ? ", failure " + mFailure : ""));
+        if (mFailure != 0) {
+            mConsumer.onFailure(mRecords, mFailure);
+        } else {
+            mConsumer.onComplete(mRecords);
+        }
+    }
+
+    // Queued like any other operation: issued directly, the requests can collide with an ATT
+    // operation in flight and be refused.
+    private void setHighThroughput(boolean enabled) {
+        if (mConnection.mBluetoothGatt == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        mConnection.mOperationQueue.enqueue(
+                GattOperationQueue.Operation.requestConnectionPriority(enabled
+                        ? BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                        : BluetoothGatt.CONNECTION_PRIORITY_BALANCED).setMaxRetries(0));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            int phy = enabled ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+            mConnection.mOperationQueue.enqueue(
+                    GattOperationQueue.Operation.setPreferredPhy(phy).setMaxRetries(0));
+        }
+    }
+}
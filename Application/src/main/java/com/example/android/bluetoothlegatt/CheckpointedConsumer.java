@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Makes a queue drain resumable: records up to the device's checkpoint are dropped, and the
+ * checkpoint advances as the downstream consumer accepts records.
+ *
+ * A record's sequence number is the unsigned decimal it starts with (the record timestamp);
+ * records that do not start with one are passed through unchecked.  Timestamps are not unique,
+ * so the checkpoint also counts the records committed with its number, and only that many are
+ * dropped.  The firmware's {@code get_queue} takes no start offset, so a resumed drain still
+ * receives the records it already has, but they are skipped before reaching the consumer, and
+ * a drain that dies partway never makes the consumer see a record twice.  The checkpoint is
+ * written every {@link #COMMIT_INTERVAL} records and when the drain ends, however it ends; a
+ * consumer that buffers records implements {@link Flushable} and is flushed first, so the
+ * checkpoint never gets ahead of what it has kept.
+ *
+ * Timestamps are only ordered while the device's clock is.  If a sequence number goes backwards
+ * (the clock was reset), or a complete drain never reaches the checkpoint (the queue was
+ * erased), the checkpoint is cleared and the rest of the drain passed through: the next drain
+ * then delivers the whole queue, so records may be seen twice but none is lost for good.
+ */
+class CheckpointedConsumer implements BulkTransfer.Consumer {
+    private final static String TAG = CheckpointedConsumer.class.getSimpleName();
+
+    static final int COMMIT_INTERVAL = 64;
+
+    private final DrainCheckpoints mCheckpoints;
+    private final String mAddress;
+    private final int mQueue;
+    private final BulkTransfer.Consumer mConsumer;
+    // The checkpoint the drain started from, and how many records with it to drop.
+    private final long mCheckpoint;
+    private final int mCheckpointCount;
+    private int mSkippedAtCheckpoint;
+    // Still dropping records the consumer already has.
+    private boolean mSkipping;
+    // The checkpoint was found stale and cleared; nothing more is committed.
+    private boolean mCleared;
+    private long mPrevious = DrainCheckpoints.NONE;
+    private long mLast;
+    private int mLastCount;
+    private long mDelivered;
+    private long mSkipped;
+    private int mUncommitted;
+
+    CheckpointedConsumer(DrainCheckpoints checkpoints, String address, int queue,
+                         BulkTransfer.Consumer consumer) {
+        mCheckpoints = checkpoints;
+        mAddress = address;
+        mQueue = queue;
+        mConsumer = consumer;
+        mCheckpoint = checkpoints.get(address, queue);
+        mCheckpointCount = mCheckpoint != DrainCheckpoints.NONE
+                ? checkpoints.getCount(address, queue) : 0;
+        mSkipping = mCheckpoint != DrainCheckpoints.NONE;
+        mLast = mCheckpoint;
+        mLastCount = mCheckpointCount;
+    }
+
+    @Override
+    public void onRecord(byte[] buffer, int offset, int length) {
+        long sequence = sequenceOf(buffer, offset, length);
+        if (sequence == DrainCheckpoints.NONE) {
+            mConsumer.onRecord(buffer, offset, length);
+            mDelivered++;
+            return;
+        }
+        if (mPrevious != DrainCheckpoints.NONE && sequence < mPrevious && !mCleared) {
+            clear("sequence went back from " + mPrevious + " to " + sequence);
+        }
+        mPrevious = sequence;
+        if (mSkipping) {
+            if (sequence < mCheckpoint
+                    || (sequence == mCheckpoint && mSkippedAtCheckpoint < mCheckpointCount)) {
+                if (sequence == mCheckpoint) {
+                    mSkippedAtCheckpoint++;
+                }
+                mSkipped++;
+                return;
+            }
+            mSkipping = false;
+        }
+        mConsumer.onRecord(buffer, offset, length);
+        mDelivered++;
+        if (mCleared) {
+            return;
+        }
+        if (sequence == mLast) {
+            mLastCount++;
+        } else {
+            mLast = sequence;
+            mLastCount = 1;
+        }
+        if (++mUncommitted >= COMMIT_INTERVAL) {
+            commit();
+        }
+    }
+
+    @Override
+    public void onComplete(long records) {
+        if (mSkipping && !mCleared) {
+            clear("checkpoint " + mCheckpoint + " not in the queue");
+        }
+        commit();
+        mConsumer.onComplete(mDelivered);
+    }
+
+    @Override
+    public void onFailure(long records, int reason) {
+        commit();
+        mConsumer.onFailure(mDelivered, reason);
+    }
+
+    /**
+     * @return the number of records dropped as already committed.
+     */
+    long getSkipped() {
+        return mSkipped;
+    }
+
+    private void clear(String why) {
+        Log.w(TAG, mAddress + ": queue " + mQueue + " checkpoint cleared, " + why + "; "
+                + (mSkipped > 0 ? mSkipped + " skipped records come again in the next drain"
+                : "the rest of the drain is delivered"));
+        mCheckpoints.clear(mAddress, mQueue);
+        mCleared = true;
+        mSkipping = false;
+    }
+
+    private void commit() {
+        if (!mCleared && mUncommitted > 0) {
+            if (mConsumer instanceof Flushable) {
+                try {
+                    ((Flushable) mConsumer).flush();
+                } catch (IOException e) {
+                    Log.e(TAG, mAddress + ": queue " + mQueue + " not committed, "
+                            + e.getMessage());
+                    return;
+                }
+            }
+            mCheckpoints.put(mAddress, mQueue, mLast, mLastCount);
+        }
+        mUncommitted = 0;
+    }
+
+    /**
+     * @return the unsigned decimal at the start of the record, or {@link DrainCheckpoints#NONE}.
+     */
+    static long sequenceOf(byte[] buffer, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end && buffer[i] == ' ') {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        for (; i < end && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+            if (++digits > 18) {
+                return DrainCheckpoints.NONE;
+            }
+            value = value * 10 + (buffer[i] - '0');
+        }
+        return digits > 0 ? value : DrainCheckpoints.NONE;
+    }
+}
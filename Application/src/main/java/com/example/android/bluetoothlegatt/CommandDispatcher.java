@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.example.android.bluetoothlegatt.starcom.BLECommand;
+import com.example.android.bluetoothlegatt.starcom.CommandCodec;
+import com.example.android.bluetoothlegatt.starcom.StarcomUUID;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Request/response layer on top of one connection's {@link GattOperationQueue}.
+ *
+ * Up to {@link #setMaxInFlight(int)} commands are written to the device before their answers
+ * arrive; further commands wait here until a slot is free.  Each reply is matched to the
+ * oldest in-flight command that accepts it (the firmware answers in order), and every command
+ * that is not answered before its deadline fails with {@link PendingCommand#FAILURE_TIMEOUT}.
+ * While the connection is not ready the dispatcher is held: commands are accepted but not
+ * written, and their deadlines do not run, except for those of the handshake itself.
+ */
+class CommandDispatcher {
+    private final static String TAG = CommandDispatcher.class.getSimpleName();
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 3;
+    static final long DEFAULT_DEADLINE_MS = 3000;
+
+    private final GattOperationQueue mOperationQueue;
+    private final CommandCodec mCommandCodec;
+    // Runs the deadlines.
+    private final Handler mHandler;
+    // Receives the callbacks.
+    private final Handler mCallbackHandler;
+    private final ConnectionStats mStats;
+    private final ArrayDeque<PendingCommand> mWaiting = new ArrayDeque<PendingCommand>();
+    // Handshake commands; written even while held, before anything else.
+    private final ArrayDeque<PendingCommand> mUrgent = new ArrayDeque<PendingCommand>();
+    private final ArrayDeque<PendingCommand> mInFlight = new ArrayDeque<PendingCommand>();
+    private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private boolean mHeld = true;
+
+    // Hands pooled payloads of parameterized commands back once they have been written.
+    private final GattOperationQueue.Listener mReleasePayload = new GattOperationQueue.Listener() {
+        @Override
+        public void onOperationDone(GattOperationQueue.Operation operation, boolean success) {
+            mCommandCodec.release(operation.mValue);
+        }
+    };
+
+    CommandDispatcher(GattOperationQueue operationQueue, CommandCodec commandCodec,
+                      Handler handler, Handler callbackHandler, ConnectionStats stats) {
+        mOperationQueue = operationQueue;
+        mCommandCodec = commandCodec;
+        mHandler = handler;
+        mCallbackHandler = callbackHandler;
+        mStats = stats;
+    }
+
+    synchronized void setMaxInFlight(int maxInFlight) {
+        mMaxInFlight = Math.max(1, maxInFlight);
+        fill();
+    }
+
+    /**
+     * Holds back or releases the commands submitted with {@code submit}.
+     */
+    synchronized void setHeld(boolean held) {
+        mHeld = held;
+        fill();
+    }
+
+    /**
+     * Queues a command of the handshake, written ahead of all others even while held.
+     */
+    synchronized PendingCommand submitUrgent(BLECommand command, long deadlineMs,
+                                             PendingCommand.Callback callback) {
+        PendingCommand pending = new PendingCommand(command, false, 0, callback, deadlineMs);
+        pending.mDispatcher = this;
+        mUrgent.add(pending);
+        fill();
+        return pending;
+    }
+
+    /**
+     * Queues a command.  It is written to the device as soon as the in-flight window allows.
+     */
+    synchronized PendingCommand submit(BLECommand command, long deadlineMs,
+                                       PendingCommand.Callback callback) {
+        return submit(new PendingCommand(command, false, 0, callback, deadlineMs));
+    }
+
+    /**
+     * Queues a parameterized command, sent as {@code "<value>:<argument>"}.
+     */
+    synchronized PendingCommand submit(BLECommand command, int argument, long deadlineMs,
+                                       PendingCommand.Callback callback) {
+        return submit(new PendingCommand(command, true, argument, callback, deadlineMs));
+    }
+
+    private PendingCommand submit(PendingCommand pending) {
+        pending.mDispatcher = this;
+        mWaiting.add(pending);
+        fill();
+        return pending;
+    }
+
+    /**
+     * Offers a reassembled reply to the in-flight commands.  The bytes are copied only if
+     * they answer one of them.
+     *
+     * @return the command it answered, or null if it answered none.
+     */
+    BLECommand onFrame(byte[] buffer, int offset, int length) {
+        PendingCommand answered = null;
+        synchronized (this) {
+            for (Iterator<PendingCommand> it = mInFlight.iterator(); it.hasNext(); ) {
+                PendingCommand pending = it.next();
+                if (pending.getCommand().matchesResponse(buffer, offset, length)) {
+                    it.remove();
+                    answered = pending;
+                    break;
+                }
+            }
+            if (answered == null) {
+                return null;
+            }
+            mHandler.removeCallbacks(answered.mTimeoutRunnable);
+            fill();
+        }
+        mStats.record(ConnectionStats.METRIC_COMMAND, System.nanoTime() - answered.mSentAt);
+        if (answered.complete(Arrays.copyOfRange(buffer, offset, offset + length))) {
+            deliver(answered);
+        }
+        return answered.getCommand();
+    }
+
+    /**
+     * Fails every command, e.g. when the link goes down.
+     */
+    void failAll(int reason) {
+        List<PendingCommand> failed;
+        synchronized (this) {
+            failed = new ArrayList<PendingCommand>(
+                    mInFlight.size() + mUrgent.size() + mWaiting.size());
+            failed.addAll(mInFlight);
+            failed.addAll(mUrgent);
+            failed.addAll(mWaiting);
+            for (PendingCommand pending : mInFlight) {
+                mHandler.removeCallbacks(pending.mTimeoutRunnable);
+            }
+            mInFlight.clear();
+            mUrgent.clear();
+            mWaiting.clear();
+        }
+        for (PendingCommand pending : failed) {
+            if (pending.fail(reason)) {
+                deliver(pending);
+            }
+        }
+    }
+
+    synchronized int size() {
+        return mInFlight.size() + mUrgent.size() + mWaiting.size();
+    }
+
+    void cancel(PendingCommand pending) {
+        synchronized (this) {
+            if (!mWaiting.remove(pending) && !mUrgent.remove(pending)
+                    && mInFlight.remove(pending)) {
+                mHandler.removeCallbacks(pending.mTimeoutRunnable);
+                fill();
+            }
+        }
+        if (pending.fail(PendingCommand.FAILURE_CANCELLED)) {
+            deliver(pending);
+        }
+    }
+
+    private void onTimeout(PendingCommand pending) {
+        synchronized (this) {
+            if (!mInFlight.remove(pending)) {
+                return;
+            }
+            Log.w(TAG, "No response to " + pending + " within " + pending.getDeadline() + " ms");
+            fill();
+        }
+        mStats.increment(ConnectionStats.COUNTER_COMMAND_TIMEOUTS);
+        if (pending.fail(PendingCommand.FAILURE_TIMEOUT)) {
+            deliver(pending);
+        }
+    }
+
+    private void fill() {
+        while (mInFlight.size() < mMaxInFlight
+                && (!mUrgent.isEmpty() || (!mHeld && !mWaiting.isEmpty()))) {
+            final PendingCommand pending = !mUrgent.isEmpty() ? mUrgent.poll() : mWaiting.poll();
+            byte[] payload;
+            try {
+                payload = pending.hasArgument()
+                        ? mCommandCodec.encode(pending.getCommand(), pending.getArgument())
+                        : mCommandCodec.encode(pending.getCommand());
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, e.getMessage());
+                payload = null;
+            }
+            if (payload == null) {
+                Log.e(TAG, pending + " does not fit in MTU " + mCommandCodec.getMtu());
+                if (pending.fail(PendingCommand.FAILURE_TOO_LONG)) {
+                    deliver(pending);
+                }
+                continue;
+            }
+            GattOperationQueue.Operation write = GattOperationQueue.Operation.write(
+                    StarcomUUID.SERVICE.getmUUID(), StarcomUUID.WRITE.getmUUID(), payload);
+            if (pending.hasArgument()) {
+                write.setListener(mReleasePayload);
+            }
+            if (!mOperationQueue.enqueue(write)) {
+                if (pending.fail(PendingCommand.FAILURE_NOT_SENT)) {
+                    deliver(pending);
+                }
+                continue;
+            }
+            pending.mTimeoutRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    onTimeout(pending);
+                }
+            };
+            pending.mSentAt = System.nanoTime();
+            mInFlight.add(pending);
+            mHandler.postDelayed(pending.mTimeoutRunnable, pending.getDeadline());
+        }
+    }
+
+    private void deliver(final PendingCommand pending) {
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                pending.dispatch();
+            }
+        });
+    }
+}
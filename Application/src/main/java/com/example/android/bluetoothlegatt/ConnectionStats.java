@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies and counters of every connection the service made since it started, for setting
+ * and checking connection time targets across firmware versions and phone models.
+ *
+ * Each handshake phase is timed from the moment it is entered to the moment the next one is,
+ * with {@code System.nanoTime()}, and recorded in microseconds in a {@link LatencyHistogram};
+ * so is the whole handshake and the round trip of every command.  Memory use is fixed.
+ * Recording is safe from any thread.
+ */
+public final class ConnectionStats {
+    // connect() or reconnect to link up.
+    public static final int METRIC_CONNECT = 0;
+    // Link up to services known, from a discovery or the cache.
+    public static final int METRIC_DISCOVERY = 1;
+    // Notifications enabled on READ.
+    public static final int METRIC_CCCD_WRITE = 2;
+    // Notifications on to seed received.
+    public static final int METRIC_SEED_READ = 3;
+    // Token write, from queueing to completion.
+    public static final int METRIC_TOKEN_WRITE = 4;
+    // Token written to the answer to the version check, the first command reply.
+    public static final int METRIC_FIRST_REPLY = 5;
+    // connect() to ready.
+    public static final int METRIC_HANDSHAKE = 6;
+    // Command handed to the operation queue to its reply.
+    public static final int METRIC_COMMAND = 7;
+    public static final int METRIC_COUNT = 8;
+
+    // GATT operations retried after a refusal, failure or timeout.
+    public static final int COUNTER_OPERATION_RETRIES = 0;
+    // GATT operations dropped after their last retry.
+    public static final int COUNTER_OPERATION_DROPS = 1;
+    public static final int COUNTER_COMMAND_TIMEOUTS = 2;
+    public static final int COUNTER_HANDSHAKE_FAILURES = 3;
+    public static final int COUNTER_DISCONNECTS = 4;
+    // Characteristic values received, in notifications and reads.
+    public static final int COUNTER_BYTES_IN = 5;
+    // Characteristic and descriptor values written.
+    public static final int COUNTER_BYTES_OUT = 6;
+    public static final int COUNTER_COUNT = 7;
+
+    private static final String[] METRIC_NAMES = {"connect", "discovery", "cccd write",
+            "seed read", "token write", "first reply", "handshake", "command"};
+    private static final String[] COUNTER_NAMES = {"operation retries", "operation drops",
+            "command timeouts", "handshake failures", "disconnects", "bytes in", "bytes out"};
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[METRIC_COUNT];
+    private final AtomicLongArray mCounters;
+
+    public ConnectionStats() {
+        for (int metric = 0; metric < METRIC_COUNT; metric++) {
+            mHistograms[metric] = new LatencyHistogram();
+        }
+        mCounters = new AtomicLongArray(COUNTER_COUNT);
+    }
+
+    private ConnectionStats(ConnectionStats other) {
+        for (int metric = 0; metric < METRIC_COUNT; metric++) {
+            mHistograms[metric] = other.mHistograms[metric].snapshot();
+        }
+        mCounters = new AtomicLongArray(COUNTER_COUNT);
+        for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+            mCounters.set(counter, other.mCounters.get(counter));
+        }
+    }
+
+    public static String metricName(int metric) {
+        return METRIC_NAMES[metric];
+    }
+
+    public static String counterName(int counter) {
+        return COUNTER_NAMES[counter];
+    }
+
+    /**
+     * Records a duration measured with {@code System.nanoTime()}.
+     */
+    void record(int metric, long nanos) {
+        mHistograms[metric].record(nanos / 1000);
+    }
+
+    void add(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    void increment(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    /**
+     * @return the durations of {@code metric}, in microseconds.
+     */
+    public LatencyHistogram getHistogram(int metric) {
+        return mHistograms[metric];
+    }
+
+    public long getCounter(int counter) {
+        return mCounters.get(counter);
+    }
+
+    /**
+     * @return a copy of the current figures, which later connections do not change.
+     */
+    public ConnectionStats snapshot() {
+        return new ConnectionStats(this);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+            mCounters.set(counter, 0);
+        }
+    }
+
+    /**
+     * Prints a table of the latencies, in milliseconds, and the counters.
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + String.format("%-20s %7s %9s %9s %9s %9s %9s %9s", "latency (ms)",
+                "count", "min", "mean", "p50", "p90", "p99", "max"));
+        for (int metric = 0; metric < METRIC_COUNT; metric++) {
+            LatencyHistogram histogram = mHistograms[metric].snapshot();
+            writer.println(prefix + String.format("%-20s %7d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f",
+                    METRIC_NAMES[metric], histogram.getCount(), histogram.getMin() / 1000.0,
+                    histogram.getMean() / 1000.0, histogram.getPercentile(50) / 1000.0,
+                    histogram.getPercentile(90) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                    histogram.getMax() / 1000.0));
+        }
+        for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+            writer.println(prefix + String.format("%-20s %7d", COUNTER_NAMES[counter],
+                    mCounters.get(counter)));
+        }
+    }
+}
@@ -18,12 +18,8 @@ package com.example.android.bluetoothlegatt;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -35,9 +31,10 @@ import android.widget.ExpandableListView;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 
+import com.example.android.bluetoothlegatt.starcom.Hex;
+
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -57,8 +54,8 @@ public class DeviceControlActivity extends Activity {
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
-            new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+    // Layout the services list was built from; it is only rebuilt when the layout changes.
+    private GattLayout mDisplayedLayout;
     private boolean mConnected = false;
     private BluetoothGattCharacteristic mNotifyCharacteristic;
 
@@ -77,6 +74,8 @@ public class DeviceControlActivity extends Activity {
             }
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
+            // Shows the services of a known device right away, before discovery.
+            displayGattLayout(mBluetoothLeService.getGattLayout(mDeviceAddress));
         }
 
         @Override
@@ -85,30 +84,32 @@ public class DeviceControlActivity extends Activity {
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Handles various events fired by the Service.  Delivered on the main thread while this
+    // activity is resumed, and only for this activity's device.
+    // EVENT_CONNECTED: connected to a GATT server.
+    // EVENT_DISCONNECTED: disconnected from a GATT server.
+    // EVENT_SERVICES_DISCOVERED: discovered GATT services.
+    // EVENT_DATA_AVAILABLE: received data from the device.  This can be a result of read
+    //                       or notification operations.
+    private final GattEventBus.Listener mGattUpdateListener = new GattEventBus.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
+        public void onGattEvent(int event, String address, byte[] data, int offset, int length) {
+            if (event == GattEventBus.EVENT_CONNECTED) {
                 mConnected = true;
                 updateConnectionState(R.string.connected);
                 invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
+            } else if (event == GattEventBus.EVENT_DISCONNECTED) {
                 mConnected = false;
                 updateConnectionState(R.string.disconnected);
                 invalidateOptionsMenu();
                 clearUI();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
+            } else if (event == GattEventBus.EVENT_SERVICES_DISCOVERED) {
                 // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+                if (mBluetoothLeService != null) {
+                    displayGattLayout(mBluetoothLeService.getGattLayout(mDeviceAddress));
+                }
+            } else if (event == GattEventBus.EVENT_DATA_AVAILABLE) {
+                displayData(data, offset, length);
             }
         }
     };
@@ -150,6 +151,7 @@ public class DeviceControlActivity extends Activity {
 
     private void clearUI() {
         mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
+        mDisplayedLayout = null;
         mDataField.setText(R.string.no_data);
     }
 
@@ -171,6 +173,7 @@ public class DeviceControlActivity extends Activity {
 
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
+        GattEventBus.getInstance().subscribe(mDeviceAddress, mGattUpdateListener, this);
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
     }
@@ -178,19 +181,12 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
     }
 
-    @Override
-    protected void onPause() {
-        super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -218,7 +214,7 @@ public class DeviceControlActivity extends Activity {
                 mBluetoothLeService.connect(mDeviceAddress);
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnect(mDeviceAddress);
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -236,66 +232,44 @@ public class DeviceControlActivity extends Activity {
         });
     }
 
-    private void displayData(String data) {
+    private void displayData(byte[] data, int offset, int length) {
         if (data != null) {
-            mDataField.setText(data);
+            mDataField.setText(new String(data, offset, length) + "\n"
+                    + Hex.toHex(data, offset, length, true, true));
         }
     }
 
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
     // In this sample, we populate the data structure that is bound to the ExpandableListView
     // on the UI.
-    private void displayGattServices(List<BluetoothGattService> gattServices) {
-        if (gattServices == null) return;
+    private void displayGattLayout(GattLayout layout) {
+        if (layout == null || layout == mDisplayedLayout) return;
+        mDisplayedLayout = layout;
 
-        String uuid = null;
-        String unknownServiceString = getResources().getString(R.string.unknown_service);
-        String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
         ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
         ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData
                 = new ArrayList<ArrayList<HashMap<String, String>>>();
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
 
         // Loops through available GATT Services.
-        for (BluetoothGattService gattService : gattServices) {
-//            if (bleAuthorizationSent) {
+        for (int s = 0; s < layout.getServiceCount(); s++) {
+            GattLayout.Service gattService = layout.getService(s);
             HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            uuid = gattService.getUuid().toString();
-            Log.e(TAG, uuid);
-//                currentServiceData.put(
-//                        LIST_NAME, SampleGattAttributes.lookup(uuid, unknownServiceString));
-            currentServiceData.put(LIST_UUID, uuid);
+            currentServiceData.put(LIST_UUID, gattService.getUuid().toString());
             gattServiceData.add(currentServiceData);
 
             ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
                     new ArrayList<HashMap<String, String>>();
-            List<BluetoothGattCharacteristic> gattCharacteristics =
-                    gattService.getCharacteristics();
-            ArrayList<BluetoothGattCharacteristic> charas =
-                    new ArrayList<BluetoothGattCharacteristic>();
 
             // Loops through available Characteristics.
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                charas.add(gattCharacteristic);
-//TODO                    gattCharacteristic.getDescriptor(UART_SERVICE_UUID).getValue()
+            for (int c = 0; c < gattService.getCharacteristicCount(); c++) {
                 HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                uuid = gattCharacteristic.getUuid().toString();
-//                    currentCharaData.put(
-//                            LIST_NAME, SampleGattAttributes.lookup(uuid, unknownCharaString));
-                currentCharaData.put(LIST_UUID, uuid);
+                currentCharaData.put(LIST_UUID,
+                        gattService.getCharacteristic(c).getUuid().toString());
                 gattCharacteristicGroupData.add(currentCharaData);
             }
-            mGattCharacteristics.add(charas);
             gattCharacteristicData.add(gattCharacteristicGroupData);
-//            } else if(gattService.getUuid().toString().toLowerCase().equals(UART_SERVICE_UUID) ||
-//                    gattService.getUuid().toString().toLowerCase().equals(UART_CHAR_TX_UUID))
-//                Log.e(TAG,"gattService.getUuid(): " + gattService.getUuid().toString().toLowerCase());
-//                bleOnIncomingSeed(gattService.);
-//            }
-
         }
 
-
         SimpleExpandableListAdapter gattServiceAdapter = new SimpleExpandableListAdapter(
                 this,
                 gattServiceData,
@@ -315,13 +289,4 @@ public class DeviceControlActivity extends Activity {
 //        int[] hash = Sha256.getSHA256Token(Integer.parseInt(uuid, 16));
 //        bleAuthorizationSent = true;
 //    }
-
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
 }
@@ -31,6 +31,7 @@ import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -42,6 +43,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
@@ -50,9 +52,17 @@ public class DeviceScanActivity extends ListActivity {
     private static final int LOCATION = 111;
     private LeDeviceListAdapter mLeDeviceListAdapter;
     private BluetoothAdapter mBluetoothAdapter;
-    private boolean mScanning;
     private Handler mHandler;
 
+    // The scanner filters and deduplicates results on its own thread; new devices are handed
+    // to the UI at most once per frame.
+    private DeviceScanner mScanner;
+    private KnownDeviceRegistry mKnownDevices;
+    private Choreographer mChoreographer;
+    // Devices waiting for the next frame; guarded by itself.
+    private final ArrayList<BluetoothDevice> mPendingDevices = new ArrayList<BluetoothDevice>();
+    private boolean mFrameScheduled;
+
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
@@ -62,6 +72,9 @@ public class DeviceScanActivity extends ListActivity {
         super.onCreate(savedInstanceState);
         getActionBar().setTitle(R.string.title_devices);
         mHandler = new Handler();
+        mChoreographer = Choreographer.getInstance();
+        mScanner = DeviceScanner.getInstance(this);
+        mKnownDevices = KnownDeviceRegistry.getInstance(this);
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
@@ -102,7 +115,7 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
-        if (!mScanning) {
+        if (!mScanner.isScanning()) {
             menu.findItem(R.id.menu_stop).setVisible(false);
             menu.findItem(R.id.menu_scan).setVisible(true);
             menu.findItem(R.id.menu_refresh).setActionView(null);
@@ -152,7 +165,18 @@ public class DeviceScanActivity extends ListActivity {
         // Initializes list view adapter.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
-        scanLeDevice(true);
+        // Known devices are listed right away, before the scan has found anything; they can
+        // be connected to by address whether or not they show up in it.
+        for (KnownDeviceRegistry.KnownDevice known : mKnownDevices.getDevices()) {
+            mLeDeviceListAdapter.addDevice(mBluetoothAdapter.getRemoteDevice(known.getAddress()));
+        }
+        mLeDeviceListAdapter.notifyDataSetChanged();
+        // A sweep started before a rotation or a trip to another activity keeps going, and
+        // the devices it already found are replayed to the new list.
+        if (!mScanner.isScanning()) {
+            scanLeDevice(true);
+        }
+        mScanner.addListener(mScanListener);
     }
 
     @Override
@@ -168,8 +192,13 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        scanLeDevice(false);
+        mScanner.removeListener(mScanListener);
         mLeDeviceListAdapter.clear();
+        synchronized (mPendingDevices) {
+            // Otherwise a frame pending now keeps new ones from being posted after onResume.
+            mChoreographer.removeFrameCallback(mFrameCallback);
+            mFrameScheduled = false;
+        }
     }
 
     @Override
@@ -177,51 +206,98 @@ public class DeviceScanActivity extends ListActivity {
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
         if (device == null) return;
         final Intent intent = new Intent(this, DeviceControlActivity.class);
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, getName(device));
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
-        if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+        if (mScanner.isScanning()) {
+            mScanner.stopScan();
         }
         startActivity(intent);
     }
 
+    /**
+     * @return the device's name, or the one it last advertised if it is not cached.
+     */
+    private String getName(BluetoothDevice device) {
+        String name = device.getName();
+        return name != null && name.length() > 0 ? name
+                : mKnownDevices.getName(device.getAddress());
+    }
+
     private void scanLeDevice(final boolean enable) {
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
+            mScanner.startScan(SCAN_PERIOD, null, 0);
+        } else {
+            mScanner.stopScan();
+        }
+        invalidateOptionsMenu();
+    }
+
+    // Runs on the scanner's thread.
+    private final DeviceScanner.Listener mScanListener = new DeviceScanner.Listener() {
+        @Override
+        public void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            synchronized (mPendingDevices) {
+                mPendingDevices.add(device);
+                if (!mFrameScheduled) {
+                    mFrameScheduled = true;
+                    mChoreographer.postFrameCallback(mFrameCallback);
+                }
+            }
+        }
+
+        @Override
+        public void onScanStopped(int reason) {
+            mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
                     invalidateOptionsMenu();
                 }
-            }, SCAN_PERIOD);
+            });
+        }
+    };
 
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
-        } else {
-            mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+    // Runs on the main thread: one list update per frame, however many devices showed up.
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            boolean changed = false;
+            synchronized (mPendingDevices) {
+                mFrameScheduled = false;
+                if (mLeDeviceListAdapter != null) {
+                    for (BluetoothDevice device : mPendingDevices) {
+                        changed |= mLeDeviceListAdapter.addDevice(device);
+                    }
+                }
+                mPendingDevices.clear();
+            }
+            if (changed) {
+                mLeDeviceListAdapter.notifyDataSetChanged();
+            }
         }
-        invalidateOptionsMenu();
-    }
+    };
 
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter {
         private ArrayList<BluetoothDevice> mLeDevices;
+        private HashSet<String> mAddresses;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
             mLeDevices = new ArrayList<BluetoothDevice>();
+            mAddresses = new HashSet<String>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        /**
+         * @return false if the device is already listed.
+         */
+        public boolean addDevice(BluetoothDevice device) {
+            if (!mAddresses.add(device.getAddress())) {
+                return false;
             }
+            mLeDevices.add(device);
+            return true;
         }
 
         public BluetoothDevice getDevice(int position) {
@@ -230,6 +306,10 @@ public class DeviceScanActivity extends ListActivity {
 
         public void clear() {
             mLeDevices.clear();
+            mAddresses.clear();
+            synchronized (mPendingDevices) {
+                mPendingDevices.clear();
+            }
         }
 
         @Override
@@ -262,7 +342,7 @@ public class DeviceScanActivity extends ListActivity {
             }
 
             BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+            final String deviceName = getName(device);
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
@@ -273,34 +353,6 @@ public class DeviceScanActivity extends ListActivity {
         }
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
-                @Override
-                public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-
-
-
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-
-                            if (device.getName() == null || device.getName().length() ==0)
-                                return;
-
-                            String name = device.getName().toUpperCase();
-
-                            if (!name.contains("STAR0") && !name.contains("CROPX"))//TODO: change this to search a specific device
-                                return ;
-
-                            mLeDeviceListAdapter.addDevice(device);
-                            mLeDeviceListAdapter.notifyDataSetChanged();
-                        }
-                    });
-                }
-            };
-
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.ParcelUuid;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.bluetoothlegatt.starcom.StarcomUUID;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans for STAR0/CROPX sensors on behalf of the whole app, independently of any activity.
+ *
+ * From Lollipop on the scan runs on {@code BluetoothLeScanner} with a controller-side
+ * {@code ScanFilter} on the Starcom UART service, so the host is only woken for sensors; the
+ * name patterns are checked in software since a filter only matches whole names.  Earlier
+ * releases fall back to {@code BluetoothAdapter.startLeScan} and filter everything in
+ * software.  Names and services are read from the advertisement itself with an
+ * {@link AdvertisementParser}, falling back to the cached device name.  Results are filtered
+ * and deduplicated by address on the scanner's own thread.  A sweep ends after its timeout, or
+ * early once the wanted addresses (or a set number of sensors) have been found.  Devices found
+ * in the current sweep are kept, and replayed to listeners that register later, so an activity
+ * that comes back does not need a new sweep.  Every device found is recorded in the
+ * {@link KnownDeviceRegistry}.
+ */
+public class DeviceScanner {
+    private final static String TAG = DeviceScanner.class.getSimpleName();
+
+    public static final int STOP_REQUESTED = 0;
+    public static final int STOP_TIMEOUT = 1;
+    public static final int STOP_FOUND = 2;
+    public static final int STOP_FAILED = 3;
+
+    // Reports every advertisement as soon as it is seen.
+    public static final int MODE_LOW_LATENCY = 0;
+    // Lets the controller collect results and deliver them in batches, where supported.
+    public static final int MODE_BATCHED = 1;
+
+    static final long BATCH_REPORT_DELAY_MS = 1000;
+
+    // Only devices whose name contains one of these, in any case, are reported.
+    private static final String[] DEVICE_NAME_PATTERNS = {"STAR0", "CROPX"};
+
+    private static final int MSG_START = 1;
+    private static final int MSG_STOP = 2;
+    private static final int MSG_RESULT = 3;
+    private static final int MSG_BATCH = 4;
+    private static final int MSG_REPLAY = 5;
+
+    /**
+     * Called on the scanner's thread.
+     */
+    public interface Listener {
+        /**
+         * Called once per device and sweep, when it is first seen.
+         */
+        void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+        void onScanStopped(int reason);
+    }
+
+    private static DeviceScanner sInstance;
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final KnownDeviceRegistry mKnownDevices;
+    private final Handler mHandler;
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+
+    // Only touched on the scanner's thread.
+    private final LinkedHashMap<String, Found> mFound = new LinkedHashMap<String, Found>();
+    private HashSet<String> mWanted;
+    private int mStopAfter;
+    private Object mPlatformCallback;
+    private boolean mSoftwareServiceFilter;
+    private final AdvertisementParser mParser = new AdvertisementParser();
+    // The sweep being run; stops sent for an earlier one are ignored.
+    private int mSweep;
+
+    // Numbers the sweeps in the order they are requested.
+    private final AtomicInteger mLastSweep = new AtomicInteger();
+    // Written on the scanner's thread only.
+    private volatile int mStartedSweep;
+    private volatile boolean mScanning;
+    private volatile int mMode = MODE_LOW_LATENCY;
+    private volatile boolean mServiceFilter = true;
+
+    public static synchronized DeviceScanner getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DeviceScanner(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DeviceScanner(Context context) {
+        BluetoothManager bluetoothManager =
+                (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        mBluetoothAdapter = bluetoothManager != null ? bluetoothManager.getAdapter() : null;
+        mKnownDevices = KnownDeviceRegistry.getInstance(context);
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper(), mCallback);
+    }
+
+    /**
+     * Sets the scan mode for the next sweep, {@link #MODE_LOW_LATENCY} or
+     * {@link #MODE_BATCHED}.
+     */
+    public void setMode(int mode) {
+        mMode = mode;
+    }
+
+    /**
+     * Whether the next sweep filters on the Starcom UART service in the controller.  Turn off
+     * for firmware that does not advertise the service.
+     */
+    public void setServiceFilter(boolean enabled) {
+        mServiceFilter = enabled;
+    }
+
+    /**
+     * @return true from {@link #startScan(long, Collection, int)} until the sweep stops.
+     */
+    public boolean isScanning() {
+        return mScanning || mStartedSweep != mLastSweep.get();
+    }
+
+    /**
+     * Registers a listener and replays the devices found so far in the current sweep to it.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+        mHandler.obtainMessage(MSG_REPLAY, listener).sendToTarget();
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Starts a new sweep, forgetting the devices found by the previous one.
+     *
+     * @param timeoutMs How long to scan at most.
+     * @param wanted Stop as soon as all these addresses have been found, or null.
+     * @param stopAfter Stop as soon as this many devices have been found, or 0.
+     */
+    public void startScan(long timeoutMs, Collection<String> wanted, int stopAfter) {
+        StartRequest request = new StartRequest();
+        request.mSweep = mLastSweep.incrementAndGet();
+        request.mWanted = wanted != null && !wanted.isEmpty() ? new HashSet<String>(wanted) : null;
+        request.mStopAfter = stopAfter;
+        mHandler.removeMessages(MSG_STOP);
+        mHandler.obtainMessage(MSG_START, request).sendToTarget();
+        mHandler.sendMessageDelayed(
+                mHandler.obtainMessage(MSG_STOP, STOP_TIMEOUT, request.mSweep), timeoutMs);
+    }
+
+    public void stopScan() {
+        mHandler.removeMessages(MSG_STOP);
+        mHandler.obtainMessage(MSG_STOP, STOP_REQUESTED, mLastSweep.get()).sendToTarget();
+    }
+
+    /**
+     * @return true if {@code name} contains one of the sensor name patterns, ignoring case.
+     * Compares in place rather than building an upper-cased copy.
+     */
+    static boolean matchesDeviceName(String name) {
+        if (name == null) {
+            return false;
+        }
+        for (String pattern : DEVICE_NAME_PATTERNS) {
+            for (int i = 0, last = name.length() - pattern.length(); i <= last; i++) {
+                if (name.regionMatches(true, i, pattern, 0, pattern.length())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static final class StartRequest {
+        int mSweep;
+        HashSet<String> mWanted;
+        int mStopAfter;
+    }
+
+    private static final class Found {
+        final BluetoothDevice mDevice;
+        int mRssi;
+        byte[] mScanRecord;
+
+        Found(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mDevice = device;
+            mRssi = rssi;
+            mScanRecord = scanRecord;
+        }
+    }
+
+    private final Handler.Callback mCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_START:
+                    start((StartRequest) msg.obj);
+                    return true;
+                case MSG_STOP:
+                    // arg2 is the sweep it was sent for.
+                    if (msg.arg2 == mSweep) {
+                        stop(msg.arg1);
+                    }
+                    return true;
+                case MSG_RESULT:
+                    onResult((Found) msg.obj);
+                    return true;
+                case MSG_BATCH:
+                    @SuppressWarnings("unchecked")
+                    List<Found> batch = (List<Found>) msg.obj;
+                    for (Found found : batch) {
+                        onResult(found);
+                    }
+                    return true;
+                case MSG_REPLAY:
+                    Listener listener = (Listener) msg.obj;
+                    for (Found found : mFound.values()) {
+                        listener.onDeviceFound(found.mDevice, found.mRssi, found.mScanRecord);
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    };
+
+    private void start(StartRequest request) {
+        stopPlatformScan();
+        mSweep = request.mSweep;
+        mScanning = true;
+        mStartedSweep = request.mSweep;
+        mSoftwareServiceFilter = false;
+        mFound.clear();
+        mWanted = request.mWanted;
+        mStopAfter = request.mStopAfter;
+        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
+            Log.w(TAG, "Bluetooth is off; not scanning.");
+            stop(STOP_FAILED);
+            return;
+        }
+        boolean started;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            started = startLeScanner();
+        } else {
+            mSoftwareServiceFilter = mServiceFilter;
+            mPlatformCallback = mLeScanCallback;
+            started = mBluetoothAdapter.startLeScan(mLeScanCallback);
+        }
+        if (!started) {
+            mPlatformCallback = null;
+            stop(STOP_FAILED);
+        }
+    }
+
+    private boolean startLeScanner() {
+        BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            return false;
+        }
+        List<ScanFilter> filters = null;
+        if (mServiceFilter) {
+            filters = new ArrayList<ScanFilter>(1);
+            filters.add(new ScanFilter.Builder()
+                    .setServiceUuid(new ParcelUuid(StarcomUUID.SERVICE.getmUUID()))
+                    .build());
+        }
+        ScanSettings.Builder settings = new ScanSettings.Builder();
+        if (mMode == MODE_BATCHED && mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setScanMode(ScanSettings.SCAN_MODE_BALANCED)
+                    .setReportDelay(BATCH_REPORT_DELAY_MS);
+        } else {
+            settings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        }
+        ScanCallback callback = new PlatformScanCallback(mSweep);
+        mPlatformCallback = callback;
+        scanner.startScan(filters, settings.build(), callback);
+        return true;
+    }
+
+    private void stop(int reason) {
+        mHandler.removeMessages(MSG_STOP);
+        stopPlatformScan();
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        Log.d(TAG, "Scan stopped (" + reason + "), " + mFound.size() + " devices");
+        for (Listener listener : mListeners) {
+            listener.onScanStopped(reason);
+        }
+    }
+
+    private void stopPlatformScan() {
+        Object callback = mPlatformCallback;
+        mPlatformCallback = null;
+        if (callback == null || mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
+            return;
+        }
+        if (callback == mLeScanCallback) {
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            stopLeScanner((ScanCallback) callback);
+        }
+    }
+
+    private void stopLeScanner(ScanCallback callback) {
+        BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (scanner != null) {
+            scanner.stopScan(callback);
+        }
+    }
+
+    private boolean matches(Found result) {
+        mParser.reset(result.mScanRecord);
+        if (mSoftwareServiceFilter && !mParser.hasServiceUuid(StarcomUUID.SERVICE.getmUUID())) {
+            return false;
+        }
+        if (!mParser.hasName()) {
+            return matchesDeviceName(result.mDevice.getName());
+        }
+        for (String pattern : DEVICE_NAME_PATTERNS) {
+            if (mParser.nameContains(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onResult(Found result) {
+        if (!mScanning) {
+            return;
+        }
+        String address = result.mDevice.getAddress();
+        Found found = mFound.get(address);
+        if (found != null) {
+            found.mRssi = result.mRssi;
+            found.mScanRecord = result.mScanRecord;
+            return;
+        }
+        if (!matches(result)) {
+            return;
+        }
+        mFound.put(address, result);
+        // The parser still holds this result's advertisement.
+        mKnownDevices.onSeen(address,
+                mParser.hasName() ? mParser.getName() : result.mDevice.getName(),
+                result.mRssi, System.currentTimeMillis());
+        for (Listener listener : mListeners) {
+            listener.onDeviceFound(result.mDevice, result.mRssi, result.mScanRecord);
+        }
+        if ((mWanted != null && mWanted.remove(address) && mWanted.isEmpty())
+                || (mStopAfter > 0 && mFound.size() >= mStopAfter)) {
+            stop(STOP_FOUND);
+        }
+    }
+
+    // Before Lollipop.  Called on a binder thread.
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+                @Override
+                public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                    mHandler.obtainMessage(MSG_RESULT, new Found(device, rssi, scanRecord))
+                            .sendToTarget();
+                }
+            };
+
+    private final class PlatformScanCallback extends ScanCallback {
+        private final int mCallbackSweep;
+
+        PlatformScanCallback(int sweep) {
+            mCallbackSweep = sweep;
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            mHandler.obtainMessage(MSG_RESULT, toFound(result)).sendToTarget();
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            List<Found> batch = new ArrayList<Found>(results.size());
+            for (ScanResult result : results) {
+                batch.add(toFound(result));
+            }
+            mHandler.obtainMessage(MSG_BATCH, batch).sendToTarget();
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "Scan failed: " + errorCode);
+            mHandler.obtainMessage(MSG_STOP, STOP_FAILED, mCallbackSweep).sendToTarget();
+        }
+
+        private Found toFound(ScanResult result) {
+            ScanRecord record = result.getScanRecord();
+            return new Found(result.getDevice(), result.getRssi(),
+                    record != null ? record.getBytes() : null);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persists, per device and record queue, the sequence number of the last record that has been
+ * committed by a queue drain and how many records with that number were committed, so an
+ * interrupted drain can pick up where it stopped.
+ */
+public class DrainCheckpoints {
+    private static final String PREFERENCES_NAME = "drain_checkpoints";
+
+    public static final long NONE = -1;
+
+    private final SharedPreferences mPreferences;
+
+    public DrainCheckpoints(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the last committed sequence number, or {@link #NONE}.
+     */
+    public long get(String address, int queue) {
+        return mPreferences.getLong(key(address, queue), NONE);
+    }
+
+    /**
+     * @return how many records with the last committed sequence number were committed.
+     */
+    public int getCount(String address, int queue) {
+        return mPreferences.getInt(countKey(address, queue), 1);
+    }
+
+    /**
+     * Records {@code count} records with {@code sequence} as committed.  Written
+     * asynchronously.
+     */
+    public void put(String address, int queue, long sequence, int count) {
+        mPreferences.edit()
+                .putLong(key(address, queue), sequence)
+                .putInt(countKey(address, queue), count)
+                .apply();
+    }
+
+    /**
+     * Forgets the checkpoint, e.g. after the device's queue has been cleared.
+     */
+    public void clear(String address, int queue) {
+        mPreferences.edit()
+                .remove(key(address, queue))
+                .remove(countKey(address, queue))
+                .apply();
+    }
+
+    private static String key(String address, int queue) {
+        return address + '/' + queue;
+    }
+
+    private static String countKey(String address, int queue) {
+        return key(address, queue) + "/count";
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.example.android.bluetoothlegatt.starcom.CommandCodec;
+import com.example.android.bluetoothlegatt.starcom.FrameAssembler;
+import com.example.android.bluetoothlegatt.starcom.Sha256;
+
+/**
+ * State of one GATT session with a STAR0/CROPX sensor: the {@code BluetoothGatt}, its
+ * connection state and handshake phase, and the operation queue that feeds it.
+ *
+ * Each connection runs on its own thread: its GATT callbacks are handed over through
+ * {@link #mEvents}, and its operation queue, command deadlines, handshake timeouts and frame
+ * flushes run on {@link #mHandler}, so one busy device does not hold up another and nothing
+ * runs on the stack's binder threads.
+ */
+class GattConnection {
+    static final int STATE_DISCONNECTED = 0;
+    static final int STATE_CONNECTING = 1;
+    static final int STATE_CONNECTED = 2;
+
+    final String mAddress;
+    private final HandlerThread mThread;
+    final Handler mHandler;
+    // Callbacks on their way from the binder thread; set up by the service with its consumer.
+    GattEventRing mEvents;
+    final GattOperationQueue mOperationQueue;
+    final CommandCodec mCommandCodec = new CommandCodec();
+    final CommandDispatcher mCommandDispatcher;
+    // Reassembles notifications into replies; set up by the service with its frame handler.
+    FrameAssembler mFrameAssembler;
+    Runnable mFrameFlushRunnable;
+    // Queue drain in progress, if any; it takes every reply while set.
+    volatile BulkTransfer mBulkTransfer;
+    // Authorization token for the current handshake.
+    final byte[] mToken = new byte[Sha256.TOKEN_LENGTH];
+    volatile BluetoothGatt mBluetoothGatt;
+    volatile int mConnectionState = STATE_DISCONNECTED;
+    // Connection and authorization phase; set up by the service with its phase handler.
+    Handshake mHandshake;
+    // The session is running on a cached GATT layout, without a discovery of its own.
+    boolean mLayoutFromCache = false;
+    // The stack's service cache has already been refreshed once for this session.
+    boolean mLayoutRefreshed = false;
+    // When the current connection attempt started, from System.nanoTime().
+    volatile long mConnectStart;
+    private volatile long mLastActivity;
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param callbackHandler Where command callbacks are delivered.
+     * @param stats Where the latencies and counters of this connection are recorded.
+     */
+    GattConnection(String address, Handler callbackHandler, ConnectionStats stats) {
+        mAddress = address;
+        mThread = new HandlerThread("Gatt " + address, Process.THREAD_PRIORITY_FOREGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mOperationQueue = new GattOperationQueue(mHandler, stats);
+        mCommandDispatcher = new CommandDispatcher(mOperationQueue, mCommandCodec, mHandler,
+                callbackHandler, stats);
+        touch();
+    }
+
+    void setBluetoothGatt(BluetoothGatt gatt) {
+        mBluetoothGatt = gatt;
+        mOperationQueue.setBluetoothGatt(gatt);
+    }
+
+    /**
+     * Records traffic on this link, so that idle links busy more recently are evicted last.
+     */
+    void touch() {
+        mLastActivity = SystemClock.elapsedRealtime();
+    }
+
+    long getLastActivity() {
+        return mLastActivity;
+    }
+
+    /**
+     * @return true if the link is down, or is past its handshake with no bulk transfer and
+     * no GATT operation or command queued or in flight.
+     */
+    boolean isIdle() {
+        int phase = mHandshake != null ? mHandshake.getPhase() : Handshake.PHASE_DISCONNECTED;
+        if (phase == Handshake.PHASE_DISCONNECTED) {
+            return true;
+        }
+        return phase == Handshake.PHASE_READY && mBulkTransfer == null
+                && mOperationQueue.size() == 0 && mCommandDispatcher.size() == 0;
+    }
+
+    /**
+     * @return true once {@link #close()} was called; callbacks still in the ring are dropped.
+     */
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Releases the {@code BluetoothGatt} on the connection's thread, then stops the thread.
+     * The connection can not be reused afterwards.
+     */
+    void close() {
+        mClosed = true;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                BulkTransfer transfer = mBulkTransfer;
+                if (transfer != null) {
+                    transfer.fail(PendingCommand.FAILURE_DISCONNECTED);
+                }
+                mCommandDispatcher.failAll(PendingCommand.FAILURE_DISCONNECTED);
+                mOperationQueue.setBluetoothGatt(null);
+                BluetoothGatt gatt = mBluetoothGatt;
+                if (gatt != null) {
+                    gatt.close();
+                    mBluetoothGatt = null;
+                }
+                mConnectionState = STATE_DISCONNECTED;
+                if (mHandshake != null) {
+                    mHandshake.reset(Handshake.PHASE_DISCONNECTED);
+                }
+            }
+        });
+        mThread.quitSafely();
+    }
+}
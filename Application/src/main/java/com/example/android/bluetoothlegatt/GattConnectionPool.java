@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Concurrent GATT sessions keyed by device address, kept in least-recently-used order.
+ *
+ * Android controllers only support a handful of simultaneous LE links, so the pool is capped.
+ * When it is full, the idle connection that saw traffic least recently can be evicted to make
+ * room for a new one.
+ */
+class GattConnectionPool {
+    static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    // Access-ordered, so iteration starts at the least recently used connection.
+    private final LinkedHashMap<String, GattConnection> mConnections =
+            new LinkedHashMap<String, GattConnection>(16, 0.75f, true);
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = Math.max(1, maxConnections);
+    }
+
+    synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Looks up a connection and marks it as most recently used.
+     */
+    synchronized GattConnection get(String address) {
+        return address != null ? mConnections.get(address) : null;
+    }
+
+    synchronized void put(GattConnection connection) {
+        mConnections.put(connection.mAddress, connection);
+    }
+
+    synchronized GattConnection remove(String address) {
+        return mConnections.remove(address);
+    }
+
+    synchronized boolean isFull() {
+        return mConnections.size() >= mMaxConnections;
+    }
+
+    synchronized int size() {
+        return mConnections.size();
+    }
+
+    /**
+     * Removes and returns the {@link GattConnection#isIdle() idle} connection with the oldest
+     * {@link GattConnection#getLastActivity() activity}, or null if every connection is busy.
+     * The caller is responsible for closing it.
+     */
+    synchronized GattConnection evictIdle() {
+        GattConnection oldest = null;
+        for (GattConnection connection : mConnections.values()) {
+            if (connection.isIdle() && (oldest == null
+                    || connection.getLastActivity() < oldest.getLastActivity())) {
+                oldest = connection;
+            }
+        }
+        if (oldest != null) {
+            mConnections.remove(oldest.mAddress);
+        }
+        return oldest;
+    }
+
+    /**
+     * Removes every connection from the pool and returns them, least recently used first.
+     */
+    synchronized List<GattConnection> removeAll() {
+        List<GattConnection> connections = new ArrayList<GattConnection>(mConnections.values());
+        mConnections.clear();
+        return connections;
+    }
+
+    synchronized List<GattConnection> snapshot() {
+        return new ArrayList<GattConnection>(mConnections.values());
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process delivery of GATT events from {@link BluetoothLeService} to the UI and other
+ * components, replacing system-wide Intent broadcasts.
+ *
+ * Subscribers choose where events are delivered: synchronously on the posting thread (the
+ * connection's own thread for GATT events), or on the thread of a given {@code Looper}.
+ * Synchronous subscribers see the caller's buffer as is.  For subscribers on other threads the
+ * payload is copied once into a pooled event that all of them share and that is recycled after
+ * the last delivery, so there is no per-event allocation and nothing is turned into a String.
+ * A subscription bound to an {@code Activity} only receives events while the activity is
+ * resumed and is cancelled when it is destroyed.
+ */
+public class GattEventBus {
+    public static final int EVENT_CONNECTED = 1;
+    public static final int EVENT_DISCONNECTED = 2;
+    public static final int EVENT_SERVICES_DISCOVERED = 3;
+    public static final int EVENT_DATA_AVAILABLE = 4;
+
+    public interface Listener {
+        /**
+         * @param address The device the event is about.
+         * @param data For {@link #EVENT_DATA_AVAILABLE}, the buffer holding the payload;
+         *             only valid during the call.  Null for other events.
+         */
+        void onGattEvent(int event, String address, byte[] data, int offset, int length);
+    }
+
+    private static final int POOL_SIZE = 16;
+    private static final int POOLED_CAPACITY = 256;
+
+    private static final GattEventBus sInstance = new GattEventBus();
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+    private final ArrayDeque<Event> mPool = new ArrayDeque<Event>(POOL_SIZE);
+
+    public static GattEventBus getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Delivers events on the thread that posts them.
+     *
+     * @param address Only deliver events for this device, or null for all devices.
+     */
+    public Subscription subscribe(String address, Listener listener) {
+        return add(new Subscription(address, listener, null));
+    }
+
+    /**
+     * Delivers events on the thread of {@code looper}.
+     */
+    public Subscription subscribe(String address, Listener listener, Looper looper) {
+        return add(new Subscription(address, listener, looper));
+    }
+
+    /**
+     * Delivers events on the main thread while {@code activity} is resumed, and cancels the
+     * subscription when the activity is destroyed.  Call from {@code onCreate}.
+     */
+    public Subscription subscribe(String address, Listener listener, Activity activity) {
+        Subscription subscription = new Subscription(address, listener, activity.getMainLooper());
+        subscription.bind(activity);
+        return add(subscription);
+    }
+
+    private Subscription add(Subscription subscription) {
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    void post(int event, String address) {
+        post(event, address, null, 0, 0);
+    }
+
+    void post(int event, String address, byte[] data, int offset, int length) {
+        Event shared = null;
+        for (Subscription subscription : mSubscriptions) {
+            if (!subscription.accepts(address)) {
+                continue;
+            }
+            if (subscription.mHandler == null) {
+                subscription.mListener.onGattEvent(event, address, data, offset, length);
+                continue;
+            }
+            if (shared == null) {
+                shared = obtain(event, address, data, offset, length);
+                // Held until every subscriber has been handed the event.
+                shared.retain();
+            }
+            shared.retain();
+            subscription.mHandler.obtainMessage(0, shared).sendToTarget();
+        }
+        if (shared != null && shared.release()) {
+            recycle(shared);
+        }
+    }
+
+    private Event obtain(int event, String address, byte[] data, int offset, int length) {
+        Event shared;
+        synchronized (mPool) {
+            shared = mPool.poll();
+        }
+        if (shared == null) {
+            shared = new Event();
+        }
+        shared.set(event, address, data, offset, length);
+        return shared;
+    }
+
+    private void recycle(Event event) {
+        if (event.mData.length > POOLED_CAPACITY) {
+            // Do not keep the occasional large payload around.
+            event.mData = new byte[POOLED_CAPACITY];
+        }
+        event.mAddress = null;
+        synchronized (mPool) {
+            if (mPool.size() < POOL_SIZE) {
+                mPool.push(event);
+            }
+        }
+    }
+
+    private static final class Event {
+        int mEvent;
+        String mAddress;
+        byte[] mData = new byte[POOLED_CAPACITY];
+        int mLength;
+        private int mReferences;
+
+        void set(int event, String address, byte[] data, int offset, int length) {
+            mEvent = event;
+            mAddress = address;
+            mLength = length;
+            mReferences = 0;
+            if (data != null && length > 0) {
+                if (mData.length < length) {
+                    mData = new byte[length];
+                }
+                System.arraycopy(data, offset, mData, 0, length);
+            }
+        }
+
+        synchronized void retain() {
+            mReferences++;
+        }
+
+        synchronized boolean release() {
+            return --mReferences == 0;
+        }
+    }
+
+    /**
+     * A registration on the bus.  Cancel it when events are no longer wanted.
+     */
+    public final class Subscription implements Handler.Callback,
+            Application.ActivityLifecycleCallbacks {
+        private final String mAddress;
+        private final Listener mListener;
+        private final Handler mHandler;
+        private Activity mActivity;
+        private volatile boolean mActive = true;
+
+        private Subscription(String address, Listener listener, Looper looper) {
+            mAddress = address;
+            mListener = listener;
+            mHandler = looper != null ? new Handler(looper, this) : null;
+        }
+
+        private void bind(Activity activity) {
+            mActivity = activity;
+            mActive = false;
+            activity.getApplication().registerActivityLifecycleCallbacks(this);
+        }
+
+        boolean accepts(String address) {
+            return mActive && (mAddress == null || mAddress.equals(address));
+        }
+
+        public void cancel() {
+            mActive = false;
+            mSubscriptions.remove(this);
+            if (mActivity != null) {
+                mActivity.getApplication().unregisterActivityLifecycleCallbacks(this);
+                mActivity = null;
+            }
+        }
+
+        @Override
+        public boolean handleMessage(Message msg) {
+            Event event = (Event) msg.obj;
+            if (mActive) {
+                mListener.onGattEvent(event.mEvent, event.mAddress,
+                        event.mLength > 0 ? event.mData : null, 0, event.mLength);
+            }
+            if (event.release()) {
+                recycle(event);
+            }
+            return true;
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+            if (activity == mActivity) {
+                mActive = true;
+            }
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+            if (activity == mActivity) {
+                mActive = false;
+            }
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            if (activity == mActivity) {
+                cancel();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands the callbacks of one {@code BluetoothGatt} from the binder thread they arrive on to
+ * the connection's own thread, without locks.
+ *
+ * The stack delivers the callbacks of a {@code BluetoothGatt} one at a time, so there is a
+ * single producer; the connection's handler is the single consumer.  Events live in
+ * preallocated slots and notification values are copied into the slot's own buffer, which
+ * only grows when a longer value arrives.  The producer posts to the handler only when the
+ * consumer is idle.  The binder thread delivers the callbacks of every connection, so the
+ * producer never waits: when the ring is full, which only happens if the connection thread
+ * stalls, it allocates the event and queues it behind the ring until the consumer catches up.
+ */
+class GattEventRing {
+    static final int EVENT_CONNECTION_STATE = 0;
+    static final int EVENT_SERVICES_DISCOVERED = 1;
+    static final int EVENT_SERVICE_CHANGED = 2;
+    static final int EVENT_DESCRIPTOR_WRITE = 3;
+    static final int EVENT_CHARACTERISTIC_READ = 4;
+    static final int EVENT_CHARACTERISTIC_WRITE = 5;
+    static final int EVENT_CHARACTERISTIC_CHANGED = 6;
+    static final int EVENT_MTU_CHANGED = 7;
+    static final int EVENT_PHY_UPDATE = 8;
+    static final int EVENT_READ_RSSI = 9;
+
+    static final int DEFAULT_CAPACITY = 256;
+
+    // Events handled per handler message, so timeouts queued behind a burst still run.
+    private static final int DRAIN_BATCH = 64;
+    private static final int INITIAL_DATA_CAPACITY = 32;
+
+    /**
+     * One callback.  {@code mTarget} is the characteristic or descriptor it concerns;
+     * {@code mData} holds a copy of the value, which is only valid during
+     * {@link Consumer#onGattEvent(Event)}.
+     */
+    static final class Event {
+        int mType;
+        BluetoothGatt mGatt;
+        Object mTarget;
+        int mStatus;
+        int mArg0;
+        int mArg1;
+        byte[] mData = new byte[INITIAL_DATA_CAPACITY];
+        int mLength;
+        boolean mHasData;
+
+        /**
+         * Copies {@code value}, which the stack may overwrite with the next notification.
+         */
+        void setData(byte[] value) {
+            mHasData = value != null;
+            if (value == null) {
+                mLength = 0;
+                return;
+            }
+            if (value.length > mData.length) {
+                mData = new byte[value.length];
+            }
+            System.arraycopy(value, 0, mData, 0, value.length);
+            mLength = value.length;
+        }
+    }
+
+    interface Consumer {
+        /**
+         * Called on the handler's thread, in the order the callbacks arrived.
+         */
+        void onGattEvent(Event event);
+    }
+
+    private final Event[] mEvents;
+    private final int mMask;
+    private final Handler mHandler;
+    private final Consumer mConsumer;
+    // Next event to hand to the consumer; written by the consumer only.
+    private final AtomicLong mHead = new AtomicLong();
+    // Next slot to fill; written by the producer only.
+    private final AtomicLong mTail = new AtomicLong();
+    // A drain is posted or running.
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    // Events that did not fit, in order; they come after everything in the ring.
+    private final ConcurrentLinkedQueue<Event> mOverflow = new ConcurrentLinkedQueue<Event>();
+    // The event returned by claim() if it was allocated; producer only.
+    private Event mClaimed;
+    // Events allocated because the ring was full; written by the producer only.
+    private volatile long mOverflowCount;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two.
+     */
+    GattEventRing(int capacity, Handler handler, Consumer consumer) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mEvents = new Event[size];
+        for (int i = 0; i < size; i++) {
+            mEvents[i] = new Event();
+        }
+        mMask = size - 1;
+        mHandler = handler;
+        mConsumer = consumer;
+    }
+
+    /**
+     * Producer: returns the next free slot, or a new event if the ring is full or events are
+     * still queued behind it.  Never blocks.  Fill it in and hand it over with
+     * {@link #publish()}.
+     */
+    Event claim() {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask || !mOverflow.isEmpty()) {
+            mOverflowCount++;
+            mClaimed = new Event();
+            return mClaimed;
+        }
+        return mEvents[(int) tail & mMask];
+    }
+
+    /**
+     * Producer: hands the event returned by {@link #claim()} to the consumer.
+     */
+    void publish() {
+        if (mClaimed != null) {
+            mOverflow.add(mClaimed);
+            mClaimed = null;
+        } else {
+            mTail.set(mTail.get() + 1);
+        }
+        if (mScheduled.compareAndSet(false, true)) {
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    /**
+     * @return how many events did not fit in the ring.
+     */
+    long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    private void drain() {
+        long head = mHead.get();
+        for (int handled = 0; handled < DRAIN_BATCH; handled++) {
+            if (head != mTail.get()) {
+                Event event = mEvents[(int) head & mMask];
+                mConsumer.onGattEvent(event);
+                event.mGatt = null;
+                event.mTarget = null;
+                mHead.set(++head);
+                continue;
+            }
+            Event overflow = mOverflow.poll();
+            if (overflow != null) {
+                mConsumer.onGattEvent(overflow);
+                continue;
+            }
+            mScheduled.set(false);
+            // The producer may have published after the checks above without posting.
+            if ((head == mTail.get() && mOverflow.isEmpty())
+                    || !mScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+        // Let other messages through before the rest of the burst.
+        mHandler.post(mDrainRunnable);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Immutable snapshot of the services, characteristics and descriptors of a GATT server, as
+ * UUIDs and properties only, so it can outlive the {@code BluetoothGatt} it was taken from.
+ */
+public final class GattLayout {
+
+    public static final class Characteristic {
+        final UUID mUuid;
+        final int mProperties;
+        final UUID[] mDescriptors;
+
+        Characteristic(UUID uuid, int properties, UUID[] descriptors) {
+            mUuid = uuid;
+            mProperties = properties;
+            mDescriptors = descriptors;
+        }
+
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        public int getProperties() {
+            return mProperties;
+        }
+
+        public int getDescriptorCount() {
+            return mDescriptors.length;
+        }
+
+        public UUID getDescriptor(int index) {
+            return mDescriptors[index];
+        }
+    }
+
+    public static final class Service {
+        final UUID mUuid;
+        final Characteristic[] mCharacteristics;
+
+        Service(UUID uuid, Characteristic[] characteristics) {
+            mUuid = uuid;
+            mCharacteristics = characteristics;
+        }
+
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        public int getCharacteristicCount() {
+            return mCharacteristics.length;
+        }
+
+        public Characteristic getCharacteristic(int index) {
+            return mCharacteristics[index];
+        }
+
+        /**
+         * @return true if {@code service} has the same characteristics, with the same
+         * properties, in the same order.
+         */
+        public boolean matches(BluetoothGattService service) {
+            List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+            if (!mUuid.equals(service.getUuid()) || characteristics == null
+                    || characteristics.size() != mCharacteristics.length) {
+                return false;
+            }
+            for (int i = 0; i < mCharacteristics.length; i++) {
+                BluetoothGattCharacteristic characteristic = characteristics.get(i);
+                if (!mCharacteristics[i].mUuid.equals(characteristic.getUuid())
+                        || mCharacteristics[i].mProperties != characteristic.getProperties()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Service[] mServices;
+
+    private GattLayout(Service[] services) {
+        mServices = services;
+    }
+
+    /**
+     * Takes a snapshot of the services of a {@code BluetoothGatt} after discovery.
+     */
+    public static GattLayout from(List<BluetoothGattService> gattServices) {
+        Service[] services = new Service[gattServices.size()];
+        for (int s = 0; s < services.length; s++) {
+            BluetoothGattService gattService = gattServices.get(s);
+            List<BluetoothGattCharacteristic> gattCharacteristics =
+                    gattService.getCharacteristics();
+            Characteristic[] characteristics = new Characteristic[gattCharacteristics.size()];
+            for (int c = 0; c < characteristics.length; c++) {
+                BluetoothGattCharacteristic gattCharacteristic = gattCharacteristics.get(c);
+                List<BluetoothGattDescriptor> gattDescriptors = gattCharacteristic.getDescriptors();
+                UUID[] descriptors = new UUID[gattDescriptors != null ? gattDescriptors.size() : 0];
+                for (int d = 0; d < descriptors.length; d++) {
+                    descriptors[d] = gattDescriptors.get(d).getUuid();
+                }
+                characteristics[c] = new Characteristic(gattCharacteristic.getUuid(),
+                        gattCharacteristic.getProperties(), descriptors);
+            }
+            services[s] = new Service(gattService.getUuid(), characteristics);
+        }
+        return new GattLayout(services);
+    }
+
+    public int getServiceCount() {
+        return mServices.length;
+    }
+
+    public Service getService(int index) {
+        return mServices[index];
+    }
+
+    /**
+     * @return the first service with {@code uuid}, or null.
+     */
+    public Service findService(UUID uuid) {
+        for (Service service : mServices) {
+            if (service.mUuid.equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One line per entry: {@code S uuid}, {@code C uuid properties} or {@code D uuid}, each
+     * belonging to the entry of the level above it.
+     */
+    String encode() {
+        StringBuilder out = new StringBuilder();
+        for (Service service : mServices) {
+            out.append("S ").append(service.mUuid).append('\n');
+            for (Characteristic characteristic : service.mCharacteristics) {
+                out.append("C ").append(characteristic.mUuid).append(' ')
+                        .append(characteristic.mProperties).append('\n');
+                for (UUID descriptor : characteristic.mDescriptors) {
+                    out.append("D ").append(descriptor).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the layout written by {@link #encode()}, or null if {@code encoded} is malformed.
+     */
+    static GattLayout decode(String encoded) {
+        ArrayList<Service> services = new ArrayList<Service>();
+        ArrayList<Characteristic> characteristics = new ArrayList<Characteristic>();
+        ArrayList<UUID> descriptors = new ArrayList<UUID>();
+        UUID service = null;
+        UUID characteristic = null;
+        int properties = 0;
+        try {
+            for (String line : encoded.split("\n")) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                switch (fields[0]) {
+                    case "S":
+                        characteristic = addCharacteristic(characteristics, characteristic,
+                                properties, descriptors);
+                        addService(services, service, characteristics);
+                        service = UUID.fromString(fields[1]);
+                        break;
+                    case "C":
+                        if (service == null) {
+                            return null;
+                        }
+                        addCharacteristic(characteristics, characteristic, properties,
+                                descriptors);
+                        characteristic = UUID.fromString(fields[1]);
+                        properties = Integer.parseInt(fields[2]);
+                        break;
+                    case "D":
+                        if (characteristic == null) {
+                            return null;
+                        }
+                        descriptors.add(UUID.fromString(fields[1]));
+                        break;
+                    default:
+                        return null;
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+        addCharacteristic(characteristics, characteristic, properties, descriptors);
+        addService(services, service, characteristics);
+        return new GattLayout(services.toArray(new Service[services.size()]));
+    }
+
+    private static UUID addCharacteristic(ArrayList<Characteristic> characteristics, UUID uuid,
+                                          int properties, ArrayList<UUID> descriptors) {
+        if (uuid != null) {
+            characteristics.add(new Characteristic(uuid, properties,
+                    descriptors.toArray(new UUID[descriptors.size()])));
+        }
+        descriptors.clear();
+        return null;
+    }
+
+    private static void addService(ArrayList<Service> services, UUID uuid,
+                                   ArrayList<Characteristic> characteristics) {
+        if (uuid != null) {
+            services.add(new Service(uuid,
+                    characteristics.toArray(new Characteristic[characteristics.size()])));
+        }
+        characteristics.clear();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Persists the GATT layout of each device, together with the firmware version it was taken
+ * with, so reconnections can reuse it instead of walking the discovered services again.
+ *
+ * A layout is dropped when the device reports another firmware version, when the device
+ * signals that its services changed, or when a lookup against it fails.  All methods are
+ * synchronized.
+ */
+public class GattLayoutCache {
+    private final static String TAG = GattLayoutCache.class.getSimpleName();
+
+    private static final String PREFERENCES_NAME = "gatt_layouts";
+    private static final String VERSION_PREFIX = "version:";
+
+    private final SharedPreferences mPreferences;
+    // Decoded layouts, loaded on first use.
+    private final HashMap<String, GattLayout> mLayouts = new HashMap<String, GattLayout>();
+
+    public GattLayoutCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the cached layout of {@code address}, or null.
+     */
+    public synchronized GattLayout get(String address) {
+        GattLayout layout = mLayouts.get(address);
+        if (layout != null || mLayouts.containsKey(address)) {
+            return layout;
+        }
+        String encoded = mPreferences.getString(address, null);
+        if (encoded != null) {
+            layout = GattLayout.decode(encoded.substring(encoded.indexOf('\n') + 1));
+            if (layout == null) {
+                Log.w(TAG, "Dropping malformed layout of " + address);
+                mPreferences.edit().remove(address).apply();
+            }
+        }
+        mLayouts.put(address, layout);
+        return layout;
+    }
+
+    /**
+     * Caches the layout of {@code address}, keeping the firmware version already known.
+     */
+    public synchronized void put(String address, GattLayout layout) {
+        mLayouts.put(address, layout);
+        mPreferences.edit().putString(address, VERSION_PREFIX + getVersion(address) + '\n'
+                + layout.encode()).apply();
+    }
+
+    public synchronized void invalidate(String address) {
+        mLayouts.put(address, null);
+        mPreferences.edit().remove(address).apply();
+    }
+
+    /**
+     * Records the firmware version the device reported, dropping its layout if it was taken
+     * with another one.
+     */
+    public synchronized void onFirmwareVersion(String address, String version) {
+        String encoded = mPreferences.getString(address, null);
+        if (encoded == null) {
+            return;
+        }
+        String cached = getVersion(address);
+        if (cached.length() == 0) {
+            mPreferences.edit().putString(address, VERSION_PREFIX + version
+                    + encoded.substring(encoded.indexOf('\n'))).apply();
+        } else if (!cached.equals(version)) {
+            Log.i(TAG, address + ": firmware " + cached + " -> " + version
+                    + ", dropping GATT layout");
+            invalidate(address);
+        }
+    }
+
+    private String getVersion(String address) {
+        String encoded = mPreferences.getString(address, null);
+        if (encoded == null || !encoded.startsWith(VERSION_PREFIX)) {
+            return "";
+        }
+        int end = encoded.indexOf('\n');
+        return encoded.substring(VERSION_PREFIX.length(), end >= 0 ? end : encoded.length());
+    }
+}
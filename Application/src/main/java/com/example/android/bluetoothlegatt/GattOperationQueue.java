@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Feeds GATT operations to a {@code BluetoothGatt} one at a time.
+ *
+ * The Android stack only accepts a single outstanding ATT operation per connection and
+ * returns false for anything issued while one is in flight.  Every read, write, descriptor
+ * write, MTU exchange and link parameter request goes through this queue instead; the next
+ * operation is started straight from the completion callback of the previous one, so there is
+ * no idle gap between them.  Operations are always issued on the handler's thread; one
+ * enqueued from another thread on an idle queue is started there.  Operations that the stack
+ * refuses, that fail, or that never complete within their timeout are retried a bounded number
+ * of times before being dropped.
+ */
+class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    static final long DEFAULT_TIMEOUT_MS = 5000;
+    static final int DEFAULT_MAX_RETRIES = 2;
+    static final long DEFAULT_RETRY_DELAY_MS = 50;
+
+    static final int TYPE_READ_CHARACTERISTIC = 0;
+    static final int TYPE_WRITE_CHARACTERISTIC = 1;
+    static final int TYPE_WRITE_DESCRIPTOR = 2;
+    static final int TYPE_REQUEST_MTU = 3;
+    static final int TYPE_REQUEST_CONNECTION_PRIORITY = 4;
+    static final int TYPE_SET_PREFERRED_PHY = 5;
+
+    interface Listener {
+        /**
+         * Called once per operation when it completes, is dropped after its last retry, or
+         * is discarded with the queue.
+         */
+        void onOperationDone(Operation operation, boolean success);
+    }
+
+    /**
+     * A single queued ATT operation.  The target characteristic is resolved from the
+     * {@code BluetoothGatt} when the operation is started, and its value is set only then,
+     * so queued writes never overwrite each other on the shared characteristic object.
+     */
+    static final class Operation {
+        final int mType;
+        final UUID mServiceUuid;
+        final UUID mCharacteristicUuid;
+        final UUID mDescriptorUuid;
+        final byte[] mValue;
+        int mMtu;
+        int mPriority;
+        int mPhy;
+        long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+        int mMaxRetries = DEFAULT_MAX_RETRIES;
+        int mAttempts;
+        Listener mListener;
+
+        private Operation(int type, UUID serviceUuid, UUID characteristicUuid,
+                          UUID descriptorUuid, byte[] value) {
+            mType = type;
+            mServiceUuid = serviceUuid;
+            mCharacteristicUuid = characteristicUuid;
+            mDescriptorUuid = descriptorUuid;
+            mValue = value;
+        }
+
+        static Operation read(UUID serviceUuid, UUID characteristicUuid) {
+            return new Operation(TYPE_READ_CHARACTERISTIC, serviceUuid, characteristicUuid,
+                    null, null);
+        }
+
+        static Operation write(UUID serviceUuid, UUID characteristicUuid, byte[] value) {
+            return new Operation(TYPE_WRITE_CHARACTERISTIC, serviceUuid, characteristicUuid,
+                    null, value);
+        }
+
+        static Operation writeDescriptor(UUID serviceUuid, UUID characteristicUuid,
+                                         UUID descriptorUuid, byte[] value) {
+            return new Operation(TYPE_WRITE_DESCRIPTOR, serviceUuid, characteristicUuid,
+                    descriptorUuid, value);
+        }
+
+        /**
+         * An MTU exchange.  It counts as an ATT operation, so it must not overlap with reads
+         * and writes either.  Only supported from Lollipop on.
+         */
+        static Operation requestMtu(int mtu) {
+            Operation operation = new Operation(TYPE_REQUEST_MTU, null, null, null, null);
+            operation.mMtu = mtu;
+            return operation;
+        }
+
+        /**
+         * A connection priority request.  The stack reports no completion for it, so it is
+         * done as soon as the stack accepts it.  Only supported from Lollipop on.
+         */
+        static Operation requestConnectionPriority(int priority) {
+            Operation operation = new Operation(TYPE_REQUEST_CONNECTION_PRIORITY, null, null,
+                    null, null);
+            operation.mPriority = priority;
+            return operation;
+        }
+
+        /**
+         * A PHY change for both directions, {@code BluetoothDevice.PHY_LE_*_MASK}.  Only
+         * supported from Oreo on.
+         */
+        static Operation setPreferredPhy(int phy) {
+            Operation operation = new Operation(TYPE_SET_PREFERRED_PHY, null, null, null, null);
+            operation.mPhy = phy;
+            return operation;
+        }
+
+        Operation setTimeout(long timeoutMs) {
+            mTimeoutMs = timeoutMs;
+            return this;
+        }
+
+        Operation setMaxRetries(int maxRetries) {
+            mMaxRetries = maxRetries;
+            return this;
+        }
+
+        Operation setListener(Listener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        void done(boolean success) {
+            if (mListener != null) {
+                mListener.onOperationDone(this, success);
+            }
+        }
+
+        boolean matches(int type, UUID characteristicUuid, UUID descriptorUuid) {
+            if (mType != type) {
+                return false;
+            }
+            if (mCharacteristicUuid == null) {
+                return true;
+            }
+            if (characteristicUuid == null || !mCharacteristicUuid.equals(characteristicUuid)) {
+                return false;
+            }
+            return mDescriptorUuid == null || mDescriptorUuid.equals(descriptorUuid);
+        }
+
+        @Override
+        public String toString() {
+            switch (mType) {
+                case TYPE_READ_CHARACTERISTIC:
+                    return "read(" + mCharacteristicUuid + ")";
+                case TYPE_WRITE_CHARACTERISTIC:
+                    return "write(" + mCharacteristicUuid + ")";
+                case TYPE_REQUEST_MTU:
+                    return "requestMtu(" + mMtu + ")";
+                case TYPE_REQUEST_CONNECTION_PRIORITY:
+                    return "requestConnectionPriority(" + mPriority + ")";
+                case TYPE_SET_PREFERRED_PHY:
+                    return "setPreferredPhy(" + mPhy + ")";
+                default:
+                    return "writeDescriptor(" + mCharacteristicUuid + "/" + mDescriptorUuid + ")";
+            }
+        }
+    }
+
+    private final Handler mHandler;
+    private final ConnectionStats mStats;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+    private BluetoothGatt mBluetoothGatt;
+    private Operation mInFlight;
+    // A start has been posted to the handler's thread.
+    private boolean mStartPosted = false;
+
+    private final Runnable mStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                mStartPosted = false;
+                if (mInFlight == null) {
+                    next();
+                }
+            }
+        }
+    };
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mInFlight == null) {
+                    return;
+                }
+                Log.w(TAG, "Timed out waiting for " + mInFlight);
+                retryOrDrop();
+            }
+        }
+    };
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mInFlight != null) {
+                    start(mInFlight);
+                }
+            }
+        }
+    };
+
+    GattOperationQueue(Handler handler, ConnectionStats stats) {
+        mHandler = handler;
+        mStats = stats;
+    }
+
+    /**
+     * Binds the queue to a connection.  Anything still pending for a previous connection is
+     * discarded.
+     */
+    synchronized void setBluetoothGatt(BluetoothGatt gatt) {
+        clear();
+        mBluetoothGatt = gatt;
+    }
+
+    /**
+     * Appends an operation and starts it immediately if nothing is in flight.
+     *
+     * @return false if the queue is not bound to a connection.
+     */
+    synchronized boolean enqueue(Operation operation) {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "enqueue " + operation + ": no connection");
+            operation.done(false);
+            return false;
+        }
+        mPending.add(operation);
+        if (mInFlight == null && !mStartPosted) {
+            if (Looper.myLooper() == mHandler.getLooper()) {
+                next();
+            } else {
+                mStartPosted = true;
+                mHandler.post(mStartRunnable);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops every pending operation and forgets the one in flight, e.g. after a disconnect.
+     */
+    synchronized void clear() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.removeCallbacks(mRetryRunnable);
+        mHandler.removeCallbacks(mStartRunnable);
+        mStartPosted = false;
+        if (mInFlight != null) {
+            mInFlight.done(false);
+            mInFlight = null;
+        }
+        for (Operation operation : mPending) {
+            operation.done(false);
+        }
+        mPending.clear();
+    }
+
+    synchronized int size() {
+        return mPending.size() + (mInFlight != null ? 1 : 0);
+    }
+
+    void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        onComplete(TYPE_READ_CHARACTERISTIC, characteristic.getUuid(), null, status);
+    }
+
+    void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        onComplete(TYPE_WRITE_CHARACTERISTIC, characteristic.getUuid(), null, status);
+    }
+
+    void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+        onComplete(TYPE_WRITE_DESCRIPTOR,
+                characteristic != null ? characteristic.getUuid() : null,
+                descriptor.getUuid(), status);
+    }
+
+    void onMtuChanged(int status) {
+        onComplete(TYPE_REQUEST_MTU, null, null, status);
+    }
+
+    void onPhyUpdate(int status) {
+        onComplete(TYPE_SET_PREFERRED_PHY, null, null, status);
+    }
+
+    private synchronized void onComplete(int type, UUID characteristicUuid, UUID descriptorUuid,
+                                         int status) {
+        if (mInFlight == null || !mInFlight.matches(type, characteristicUuid, descriptorUuid)) {
+            // A late completion for an operation we already timed out, or one that was not
+            // issued through the queue.
+            return;
+        }
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, mInFlight + " completed with status " + status);
+            retryOrDrop();
+            return;
+        }
+        mInFlight.done(true);
+        mInFlight = null;
+        next();
+    }
+
+    private void next() {
+        mInFlight = mPending.poll();
+        if (mInFlight != null) {
+            start(mInFlight);
+        }
+    }
+
+    private void start(Operation operation) {
+        operation.mAttempts++;
+        if (execute(operation)) {
+            if (operation.mValue != null) {
+                mStats.add(ConnectionStats.COUNTER_BYTES_OUT, operation.mValue.length);
+            }
+            if (operation.mType == TYPE_REQUEST_CONNECTION_PRIORITY) {
+                // No callback to wait for.
+                mInFlight.done(true);
+                mInFlight = null;
+                next();
+                return;
+            }
+            mHandler.postDelayed(mTimeoutRunnable, operation.mTimeoutMs);
+        } else {
+            Log.w(TAG, "Stack refused " + operation + " (attempt " + operation.mAttempts + ")");
+            retryOrDrop();
+        }
+    }
+
+    private void retryOrDrop() {
+        if (mInFlight.mAttempts <= mInFlight.mMaxRetries) {
+            mStats.increment(ConnectionStats.COUNTER_OPERATION_RETRIES);
+            mHandler.postDelayed(mRetryRunnable, DEFAULT_RETRY_DELAY_MS);
+            return;
+        }
+        mStats.increment(ConnectionStats.COUNTER_OPERATION_DROPS);
+        Log.e(TAG, "Dropping " + mInFlight + " after " + mInFlight.mAttempts + " attempts");
+        mInFlight.done(false);
+        mInFlight = null;
+        next();
+    }
+
+    private boolean execute(Operation operation) {
+        if (mBluetoothGatt == null) {
+            return false;
+        }
+        if (operation.mType == TYPE_REQUEST_MTU) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    && mBluetoothGatt.requestMtu(operation.mMtu);
+        }
+        if (operation.mType == TYPE_REQUEST_CONNECTION_PRIORITY) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    && mBluetoothGatt.requestConnectionPriority(operation.mPriority);
+        }
+        if (operation.mType == TYPE_SET_PREFERRED_PHY) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                return false;
+            }
+            // Returns nothing; the outcome arrives in onPhyUpdate.
+            mBluetoothGatt.setPreferredPhy(operation.mPhy, operation.mPhy,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            return true;
+        }
+        BluetoothGattService service = mBluetoothGatt.getService(operation.mServiceUuid);
+        if (service == null) {
+            Log.e(TAG, operation + ": service " + operation.mServiceUuid + " not found");
+            return false;
+        }
+        BluetoothGattCharacteristic characteristic =
+                service.getCharacteristic(operation.mCharacteristicUuid);
+        if (characteristic == null) {
+            Log.e(TAG, operation + ": characteristic not found");
+            return false;
+        }
+        switch (operation.mType) {
+            case TYPE_READ_CHARACTERISTIC:
+                return mBluetoothGatt.readCharacteristic(characteristic);
+            case TYPE_WRITE_CHARACTERISTIC:
+                characteristic.setValue(operation.mValue);
+                return mBluetoothGatt.writeCharacteristic(characteristic);
+            case TYPE_WRITE_DESCRIPTOR:
+                BluetoothGattDescriptor descriptor =
+                        characteristic.getDescriptor(operation.mDescriptorUuid);
+                if (descriptor == null) {
+                    Log.e(TAG, operation + ": descriptor not found");
+                    return false;
+                }
+                descriptor.setValue(operation.mValue);
+                return mBluetoothGatt.writeDescriptor(descriptor);
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Phase of the connection and authorization handshake of one {@link GattConnection}:
+ * <pre>
+ *     CONNECTING → CONNECTED → DISCOVERED → NOTIFYING → SEED_RECEIVED → TOKEN_SENT
+ *                → AUTHENTICATED → READY
+ * </pre>
+ * Every phase before {@link #PHASE_READY} has a deadline; a connection that does not move on
+ * in time, or that hits an error, fails at once instead of hanging half-authenticated.  The
+ * phase only moves forward through {@link #advance(int, int)}, which checks where it comes
+ * from, so a duplicate or late callback can not run a step twice.
+ */
+class Handshake {
+    static final int PHASE_DISCONNECTED = 0;
+    static final int PHASE_CONNECTING = 1;
+    // Link up, services not known yet.
+    static final int PHASE_CONNECTED = 2;
+    // Services known; enabling notifications on READ.
+    static final int PHASE_DISCOVERED = 3;
+    // Notifications on; waiting for the seed.
+    static final int PHASE_NOTIFYING = 4;
+    // Token computed and queued; waiting for the write to complete.
+    static final int PHASE_SEED_RECEIVED = 5;
+    // Token written; waiting for the device to answer the version check.
+    static final int PHASE_TOKEN_SENT = 6;
+    static final int PHASE_AUTHENTICATED = 7;
+    // Commands flow.
+    static final int PHASE_READY = 8;
+
+    private static final String[] NAMES = {"DISCONNECTED", "CONNECTING", "CONNECTED",
+            "DISCOVERED", "NOTIFYING", "SEED_RECEIVED", "TOKEN_SENT", "AUTHENTICATED", "READY"};
+
+    // How long each phase may last, in ms; 0 for no limit.
+    private static final long[] TIMEOUTS_MS = {0, 10000, 10000, 5000, 5000, 5000, 5000, 0, 0};
+
+    interface Listener {
+        /**
+         * @param elapsedNanos How long the handshake was in {@code from}.
+         */
+        void onPhaseChanged(GattConnection connection, int from, int to, long elapsedNanos);
+
+        void onFailed(GattConnection connection, int phase, String reason);
+    }
+
+    private final GattConnection mConnection;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private int mPhase = PHASE_DISCONNECTED;
+    private long mPhaseStart;
+    // Same, from System.nanoTime(), for timing the phases.
+    private long mPhaseStartNanos = System.nanoTime();
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int phase;
+            synchronized (Handshake.this) {
+                phase = mPhase;
+                // Lost a race with a phase change.
+                if (SystemClock.elapsedRealtime() - mPhaseStart < TIMEOUTS_MS[phase]
+                        || TIMEOUTS_MS[phase] == 0) {
+                    return;
+                }
+            }
+            fail(phase, NAMES[phase] + " timed out after " + TIMEOUTS_MS[phase] + " ms");
+        }
+    };
+
+    Handshake(GattConnection connection, Handler handler, Listener listener) {
+        mConnection = connection;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    static String name(int phase) {
+        return NAMES[phase];
+    }
+
+    synchronized int getPhase() {
+        return mPhase;
+    }
+
+    boolean isReady() {
+        return getPhase() == PHASE_READY;
+    }
+
+    /**
+     * @return when the current phase started, in {@code SystemClock.elapsedRealtime()} ms.
+     */
+    synchronized long getPhaseStart() {
+        return mPhaseStart;
+    }
+
+    /**
+     * Moves from {@code from} to {@code to}.
+     *
+     * @return false, and changes nothing, if the handshake is not in {@code from}.
+     */
+    boolean advance(int from, int to) {
+        long elapsed;
+        synchronized (this) {
+            if (mPhase != from) {
+                return false;
+            }
+            elapsed = enter(to);
+        }
+        mListener.onPhaseChanged(mConnection, from, to, elapsed);
+        return true;
+    }
+
+    /**
+     * Moves to {@code to} whatever the current phase, e.g. when the link comes up or goes down.
+     */
+    void reset(int to) {
+        int from;
+        long elapsed;
+        synchronized (this) {
+            from = mPhase;
+            elapsed = enter(to);
+        }
+        if (from != to) {
+            mListener.onPhaseChanged(mConnection, from, to, elapsed);
+        }
+    }
+
+    /**
+     * Fails the handshake if it is still in {@code phase}.
+     */
+    void fail(int phase, String reason) {
+        synchronized (this) {
+            if (mPhase != phase || mPhase == PHASE_DISCONNECTED) {
+                return;
+            }
+            mHandler.removeCallbacks(mTimeoutRunnable);
+        }
+        mListener.onFailed(mConnection, phase, reason);
+    }
+
+    // Returns how long the previous phase lasted, in ns.
+    private long enter(int phase) {
+        long now = System.nanoTime();
+        long elapsed = now - mPhaseStartNanos;
+        mPhase = phase;
+        mPhaseStart = SystemClock.elapsedRealtime();
+        mPhaseStartNanos = now;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        if (TIMEOUTS_MS[phase] > 0) {
+            mHandler.postDelayed(mTimeoutRunnable, TIMEOUTS_MS[phase]);
+        }
+        return elapsed;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent record of every sensor the app has seen or connected to, so known devices can be
+ * listed at startup and connected to by address without scanning first.
+ *
+ * The registry is loaded once into memory and every change is written back asynchronously,
+ * one preference per device.  All methods are synchronized.
+ */
+public class KnownDeviceRegistry {
+    private final static String TAG = KnownDeviceRegistry.class.getSimpleName();
+
+    private static final String PREFERENCES_NAME = "known_devices";
+
+    public static final int AUTH_UNKNOWN = 0;
+    public static final int AUTH_OK = 1;
+    public static final int AUTH_FAILED = 2;
+
+    public static final long NEVER = 0;
+
+    /**
+     * What is known about one device.  Instances handed out are copies.
+     */
+    public static final class KnownDevice {
+        final String mAddress;
+        String mName;
+        int mRssi;
+        long mLastSeen = NEVER;
+        long mLastConnected = NEVER;
+        int mAuthResult = AUTH_UNKNOWN;
+
+        KnownDevice(String address) {
+            mAddress = address;
+        }
+
+        KnownDevice(KnownDevice other) {
+            mAddress = other.mAddress;
+            mName = other.mName;
+            mRssi = other.mRssi;
+            mLastSeen = other.mLastSeen;
+            mLastConnected = other.mLastConnected;
+            mAuthResult = other.mAuthResult;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return the last name the device advertised, or null.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * @return when the device was last found by a scan, in ms since the epoch, or
+         * {@link #NEVER}.
+         */
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        /**
+         * @return when the device was last connected to, in ms since the epoch, or
+         * {@link #NEVER}.
+         */
+        public long getLastConnected() {
+            return mLastConnected;
+        }
+
+        /**
+         * @return the outcome of the last handshake, {@link #AUTH_OK}, {@link #AUTH_FAILED}
+         * or {@link #AUTH_UNKNOWN}.
+         */
+        public int getAuthResult() {
+            return mAuthResult;
+        }
+    }
+
+    // Most recently connected first, then most recently seen.
+    private static final Comparator<KnownDevice> RECENT_FIRST = new Comparator<KnownDevice>() {
+        @Override
+        public int compare(KnownDevice a, KnownDevice b) {
+            if (a.mLastConnected != b.mLastConnected) {
+                return a.mLastConnected > b.mLastConnected ? -1 : 1;
+            }
+            if (a.mLastSeen != b.mLastSeen) {
+                return a.mLastSeen > b.mLastSeen ? -1 : 1;
+            }
+            return a.mAddress.compareTo(b.mAddress);
+        }
+    };
+
+    private static KnownDeviceRegistry sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final HashMap<String, KnownDevice> mDevices = new HashMap<String, KnownDevice>();
+
+    public static synchronized KnownDeviceRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KnownDeviceRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private KnownDeviceRegistry(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            KnownDevice device = decode(entry.getKey(), String.valueOf(entry.getValue()));
+            if (device != null) {
+                mDevices.put(device.mAddress, device);
+            }
+        }
+    }
+
+    /**
+     * @return every known device, most recently connected first.
+     */
+    public synchronized List<KnownDevice> getDevices() {
+        ArrayList<KnownDevice> devices = new ArrayList<KnownDevice>(mDevices.size());
+        for (KnownDevice device : mDevices.values()) {
+            devices.add(new KnownDevice(device));
+        }
+        Collections.sort(devices, RECENT_FIRST);
+        return devices;
+    }
+
+    /**
+     * @return what is known about {@code address}, or null.
+     */
+    public synchronized KnownDevice get(String address) {
+        KnownDevice device = mDevices.get(address);
+        return device != null ? new KnownDevice(device) : null;
+    }
+
+    /**
+     * @return the last known name of {@code address}, or null.
+     */
+    public synchronized String getName(String address) {
+        KnownDevice device = mDevices.get(address);
+        return device != null ? device.mName : null;
+    }
+
+    /**
+     * Records that a scan found the device.
+     */
+    public synchronized void onSeen(String address, String name, int rssi, long time) {
+        KnownDevice device = obtain(address);
+        if (name != null && name.length() > 0) {
+            device.mName = name;
+        }
+        device.mRssi = rssi;
+        device.mLastSeen = time;
+        save(device);
+    }
+
+    /**
+     * Records a successful GATT connection.
+     */
+    public synchronized void onConnected(String address, long time) {
+        KnownDevice device = obtain(address);
+        device.mLastConnected = time;
+        save(device);
+    }
+
+    /**
+     * Records the outcome of a handshake.
+     */
+    public synchronized void onAuthResult(String address, int result) {
+        KnownDevice device = obtain(address);
+        if (device.mAuthResult == result) {
+            return;
+        }
+        device.mAuthResult = result;
+        save(device);
+    }
+
+    public synchronized void forget(String address) {
+        if (mDevices.remove(address) != null) {
+            mPreferences.edit().remove(address).apply();
+        }
+    }
+
+    private KnownDevice obtain(String address) {
+        KnownDevice device = mDevices.get(address);
+        if (device == null) {
+            device = new KnownDevice(address);
+            mDevices.put(address, device);
+        }
+        return device;
+    }
+
+    private void save(KnownDevice device) {
+        mPreferences.edit().putString(device.mAddress, encode(device)).apply();
+    }
+
+    // rssi,lastSeen,lastConnected,auth,name; the name goes last as it may hold commas.
+    private static String encode(KnownDevice device) {
+        return device.mRssi + "," + device.mLastSeen + "," + device.mLastConnected + ","
+                + device.mAuthResult + "," + (device.mName != null ? device.mName : "");
+    }
+
+    private static KnownDevice decode(String address, String value) {
+        String[] fields = value.split(",", 5);
+        if (fields.length != 5) {
+            Log.w(TAG, "Dropping malformed entry for " + address);
+            return null;
+        }
+        KnownDevice device = new KnownDevice(address);
+        try {
+            device.mRssi = Integer.parseInt(fields[0]);
+            device.mLastSeen = Long.parseLong(fields[1]);
+            device.mLastConnected = Long.parseLong(fields[2]);
+            device.mAuthResult = Integer.parseInt(fields[3]);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Dropping malformed entry for " + address);
+            return null;
+        }
+        device.mName = fields[4].length() > 0 ? fields[4] : null;
+        return device;
+    }
+}
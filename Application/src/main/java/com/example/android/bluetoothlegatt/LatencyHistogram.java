@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Fixed-size histogram of durations in microseconds, from 0 to about 35 minutes.
+ *
+ * Buckets are log-linear: each power of two is split into {@link #SUB_BUCKETS} equal
+ * buckets, so a percentile is off by at most 1/16 of its value whatever the range, and the
+ * histogram takes the same 448 counters however many values it records.  Recording is
+ * constant time and does not allocate.  All methods are synchronized.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Largest value told apart from the ones above it, 2^31 - 1 us.
+    static final long MAX_VALUE_US = (1L << 31) - 1;
+    private static final int BUCKET_COUNT = bucketOf(MAX_VALUE_US) + 1;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    public LatencyHistogram() {
+    }
+
+    private LatencyHistogram(LatencyHistogram other) {
+        System.arraycopy(other.mCounts, 0, mCounts, 0, BUCKET_COUNT);
+        mCount = other.mCount;
+        mSum = other.mSum;
+        mMin = other.mMin;
+        mMax = other.mMax;
+    }
+
+    /**
+     * Records one duration; longer ones than {@link #MAX_VALUE_US} count as that.
+     */
+    public synchronized void record(long us) {
+        us = Math.max(0, Math.min(us, MAX_VALUE_US));
+        mCounts[bucketOf(us)]++;
+        mCount++;
+        mSum += us;
+        mMin = Math.min(mMin, us);
+        mMax = Math.max(mMax, us);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the shortest duration recorded, or 0 if none was.
+     */
+    public synchronized long getMin() {
+        return mCount > 0 ? mMin : 0;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMean() {
+        return mCount > 0 ? mSum / mCount : 0;
+    }
+
+    /**
+     * @param percentile From 0 to 100.
+     * @return the duration {@code percentile} percent of the recorded ones do not exceed, as
+     * the upper end of its bucket, or 0 if none was recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank) {
+                return Math.max(mMin, Math.min(upperBoundOf(bucket), mMax));
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            mCounts[bucket] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * @return an independent copy.
+     */
+    public synchronized LatencyHistogram snapshot() {
+        return new LatencyHistogram(this);
+    }
+
+    // Values below SUB_BUCKETS get a bucket each; above that, SUB_BUCKETS per power of two.
+    static int bucketOf(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(us);
+        int subBucket = (int) (us >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
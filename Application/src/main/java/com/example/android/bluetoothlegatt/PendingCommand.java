@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import com.example.android.bluetoothlegatt.starcom.BLECommand;
+import com.example.android.bluetoothlegatt.starcom.CommandCodec;
+
+/**
+ * Handle to a {@link BLECommand} sent through
+ * {@link BluetoothLeService#sendCommand(String, BLECommand, PendingCommand.Callback)}.
+ * Completes exactly once, either with the notification that answered it or with a failure.
+ */
+public class PendingCommand {
+    public static final int FAILURE_TIMEOUT = 1;
+    public static final int FAILURE_DISCONNECTED = 2;
+    public static final int FAILURE_CANCELLED = 3;
+    public static final int FAILURE_NOT_SENT = 4;
+    public static final int FAILURE_TOO_LONG = 5;
+    // The connection failed its handshake before the command could be sent.
+    public static final int FAILURE_HANDSHAKE = 6;
+    // A bulk transfer received records faster than its consumer could take them.
+    public static final int FAILURE_OVERFLOW = 7;
+
+    /**
+     * Receives the outcome of a command.  Called on the main thread.
+     */
+    public interface Callback {
+        void onResponse(PendingCommand command, byte[] response);
+
+        void onFailure(PendingCommand command, int reason);
+    }
+
+    private final BLECommand mCommand;
+    private final boolean mHasArgument;
+    private final int mArgument;
+    private final Callback mCallback;
+    private final long mDeadlineMs;
+    private boolean mDone;
+    private byte[] mResponse;
+    private int mFailure;
+    CommandDispatcher mDispatcher;
+    Runnable mTimeoutRunnable;
+    // When it was handed to the operation queue, from System.nanoTime().
+    long mSentAt;
+
+    PendingCommand(BLECommand command, boolean hasArgument, int argument, Callback callback,
+                   long deadlineMs) {
+        mCommand = command;
+        mHasArgument = hasArgument;
+        mArgument = argument;
+        mCallback = callback;
+        mDeadlineMs = deadlineMs;
+    }
+
+    public BLECommand getCommand() {
+        return mCommand;
+    }
+
+    public boolean hasArgument() {
+        return mHasArgument;
+    }
+
+    public int getArgument() {
+        return mArgument;
+    }
+
+    /**
+     * @return the time in milliseconds the device has to answer once the command is sent.
+     */
+    public long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return the response bytes, or null if the command has not (successfully) completed.
+     */
+    public synchronized byte[] getResponse() {
+        return mResponse;
+    }
+
+    /**
+     * @return one of the {@code FAILURE_*} constants, or 0 if the command did not fail.
+     */
+    public synchronized int getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * Abandons the command.  If it is still waiting for a response its in-flight slot is
+     * released and the callback receives {@link #FAILURE_CANCELLED}.
+     */
+    public void cancel() {
+        CommandDispatcher dispatcher = mDispatcher;
+        if (dispatcher != null) {
+            dispatcher.cancel(this);
+        }
+    }
+
+    synchronized boolean complete(byte[] response) {
+        if (mDone) {
+            return false;
+        }
+        mDone = true;
+        mResponse = response;
+        return true;
+    }
+
+    synchronized boolean fail(int reason) {
+        if (mDone) {
+            return false;
+        }
+        mDone = true;
+        mFailure = reason;
+        return true;
+    }
+
+    void dispatch() {
+        if (mCallback == null) {
+            return;
+        }
+        if (mFailure != 0) {
+            mCallback.onFailure(this, mFailure);
+        } else {
+            mCallback.onResponse(this, mResponse);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mHasArgument ? mCommand.getValue() + CommandCodec.ARGUMENT_SEPARATOR + mArgument
+                : mCommand.getValue();
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import com.example.android.bluetoothlegatt.starcom.CropXReading;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Rolling statistics per probe, quantity and depth, kept up to date as readings arrive.
+ *
+ * Every series keeps, for each window (an hour, a day and a week by default), a ring of
+ * {@link #DEFAULT_BUCKETS} time buckets holding the min, max, sum, count and first value of
+ * the readings that fell into them, plus the min, max, mean, first value and rate of change
+ * of the whole window.  A reading updates its bucket and the window totals in constant time;
+ * when a new bucket starts, the window totals are rebuilt from the buckets still inside the
+ * window, so expiry costs one pass over the ring per bucket period instead of a rescan of
+ * history.  Reading the statistics is constant time as well.  A window covers its last
+ * {@code buckets} whole buckets, so its start moves in steps of one bucket.
+ *
+ * All state lives in primitive arrays indexed by series, and grows only with the number of
+ * series, never with the number of readings.  All methods are synchronized.
+ */
+public class ReadingAggregator {
+
+    public static final long HOUR_MS = 60 * 60 * 1000L;
+    public static final long DAY_MS = 24 * HOUR_MS;
+    public static final long WEEK_MS = 7 * DAY_MS;
+
+    // Window indexes of the default configuration.
+    public static final int WINDOW_HOUR = 0;
+    public static final int WINDOW_DAY = 1;
+    public static final int WINDOW_WEEK = 2;
+
+    public static final int DEFAULT_BUCKETS = 24;
+    public static final int MAX_DEPTHS = 16;
+
+    private static final int QUANTITY_COUNT = CropXReading.Quantity.values().length;
+    private static final int INITIAL_SERIES = 16;
+
+    /**
+     * Statistics of one series over one window, filled by
+     * {@link #get(String, CropXReading.Quantity, int, int, long, Stats)}.
+     */
+    public static final class Stats {
+        public int count;
+        public float min;
+        public float max;
+        public float mean;
+        // Most recent reading of the series, whatever the window.
+        public float last;
+        public long lastTimestamp;
+        // Change per hour between the first reading in the window and the last one.
+        public float ratePerHour;
+    }
+
+    private final int mWindows;
+    private final int mBuckets;
+    private final long[] mBucketMs;
+    private final HashMap<String, int[]> mSeriesByProbe = new HashMap<String, int[]>();
+    private int mSeriesCount;
+    private int mCapacity;
+
+    // Per series.
+    private float[] mLast;
+    private long[] mLastTimestamp;
+
+    // Per series and window.
+    private long[] mCurrentBucket;
+    private int[] mCount;
+    private float[] mMin;
+    private float[] mMax;
+    private double[] mSum;
+    private float[] mFirst;
+    private long[] mFirstTimestamp;
+
+    // Per series, window and bucket.
+    private long[] mBucketId;
+    private int[] mBucketCount;
+    private float[] mBucketMin;
+    private float[] mBucketMax;
+    private double[] mBucketSum;
+    private float[] mBucketFirst;
+    private long[] mBucketFirstTimestamp;
+
+    /**
+     * Aggregates over an hour, a day and a week.
+     */
+    public ReadingAggregator() {
+        this(new long[] {HOUR_MS, DAY_MS, WEEK_MS}, DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param windowsMs Length of each window; windows are addressed by their index here.
+     * @param buckets Number of buckets per window.
+     */
+    public ReadingAggregator(long[] windowsMs, int buckets) {
+        mWindows = windowsMs.length;
+        mBuckets = buckets;
+        mBucketMs = new long[mWindows];
+        for (int w = 0; w < mWindows; w++) {
+            mBucketMs[w] = Math.max(1, windowsMs[w] / buckets);
+        }
+        grow(INITIAL_SERIES);
+    }
+
+    /**
+     * Adds every depth of a parsed reply, taken at {@code timestamp}.
+     */
+    public synchronized void add(String address, long timestamp, CropXReading reading) {
+        for (int depth = 0; depth < reading.getDepthCount(); depth++) {
+            float value = reading.getValue(depth);
+            if (!Float.isNaN(value)) {
+                add(address, timestamp, reading.getQuantity(), depth, value);
+            }
+        }
+    }
+
+    public synchronized void add(String address, long timestamp, CropXReading.Quantity quantity,
+                                 int depth, float value) {
+        if (depth < 0 || depth >= MAX_DEPTHS) {
+            return;
+        }
+        int series = series(address, quantity, depth, true);
+        if (timestamp >= mLastTimestamp[series]) {
+            mLast[series] = value;
+            mLastTimestamp[series] = timestamp;
+        }
+        for (int w = 0; w < mWindows; w++) {
+            add(series * mWindows + w, w, timestamp, value);
+        }
+    }
+
+    /**
+     * Fills {@code out} with the statistics of a series over window {@code window} as of
+     * {@code now}.
+     *
+     * @return false if the series has no reading in the window.
+     */
+    public synchronized boolean get(String address, CropXReading.Quantity quantity, int depth,
+                                    int window, long now, Stats out) {
+        int series = depth >= 0 && depth < MAX_DEPTHS ? series(address, quantity, depth, false)
+                : -1;
+        if (series < 0) {
+            return false;
+        }
+        int sw = series * mWindows + window;
+        long bucket = now / mBucketMs[window];
+        if (bucket > mCurrentBucket[sw]) {
+            advance(sw, window, bucket);
+        }
+        int count = mCount[sw];
+        out.count = count;
+        out.last = mLast[series];
+        out.lastTimestamp = mLastTimestamp[series];
+        if (count == 0) {
+            return false;
+        }
+        out.min = mMin[sw];
+        out.max = mMax[sw];
+        out.mean = (float) (mSum[sw] / count);
+        long elapsed = mLastTimestamp[series] - mFirstTimestamp[sw];
+        out.ratePerHour = elapsed > 0
+                ? (float) ((double) (mLast[series] - mFirst[sw]) * HOUR_MS / elapsed) : 0f;
+        return true;
+    }
+
+    /**
+     * @return the number of series tracked.
+     */
+    public synchronized int getSeriesCount() {
+        return mSeriesCount;
+    }
+
+    private void add(int sw, int window, long timestamp, float value) {
+        long bucket = timestamp / mBucketMs[window];
+        if (bucket > mCurrentBucket[sw]) {
+            advance(sw, window, bucket);
+        } else if (bucket <= mCurrentBucket[sw] - mBuckets) {
+            // Older than the window.
+            return;
+        }
+        int b = sw * mBuckets + (int) (bucket % mBuckets);
+        if (mBucketId[b] != bucket) {
+            mBucketId[b] = bucket;
+            mBucketCount[b] = 0;
+        }
+        if (mBucketCount[b] == 0) {
+            mBucketMin[b] = value;
+            mBucketMax[b] = value;
+            mBucketSum[b] = 0;
+            mBucketFirst[b] = value;
+            mBucketFirstTimestamp[b] = timestamp;
+        } else {
+            mBucketMin[b] = Math.min(mBucketMin[b], value);
+            mBucketMax[b] = Math.max(mBucketMax[b], value);
+            if (timestamp < mBucketFirstTimestamp[b]) {
+                mBucketFirst[b] = value;
+                mBucketFirstTimestamp[b] = timestamp;
+            }
+        }
+        mBucketSum[b] += value;
+        mBucketCount[b]++;
+
+        if (mCount[sw] == 0) {
+            mMin[sw] = value;
+            mMax[sw] = value;
+            mSum[sw] = 0;
+            mFirst[sw] = value;
+            mFirstTimestamp[sw] = timestamp;
+        } else {
+            mMin[sw] = Math.min(mMin[sw], value);
+            mMax[sw] = Math.max(mMax[sw], value);
+            if (timestamp < mFirstTimestamp[sw]) {
+                mFirst[sw] = value;
+                mFirstTimestamp[sw] = timestamp;
+            }
+        }
+        mSum[sw] += value;
+        mCount[sw]++;
+    }
+
+    /**
+     * Moves the window to end with {@code bucket} and rebuilds its totals from the buckets
+     * that are still inside it.
+     */
+    private void advance(int sw, int window, long bucket) {
+        mCurrentBucket[sw] = bucket;
+        int count = 0;
+        float min = 0;
+        float max = 0;
+        double sum = 0;
+        float first = 0;
+        long firstTimestamp = Long.MAX_VALUE;
+        int base = sw * mBuckets;
+        for (int i = 0; i < mBuckets; i++) {
+            int b = base + i;
+            if (mBucketCount[b] == 0 || mBucketId[b] <= bucket - mBuckets) {
+                continue;
+            }
+            if (count == 0) {
+                min = mBucketMin[b];
+                max = mBucketMax[b];
+            } else {
+                min = Math.min(min, mBucketMin[b]);
+                max = Math.max(max, mBucketMax[b]);
+            }
+            if (mBucketFirstTimestamp[b] < firstTimestamp) {
+                first = mBucketFirst[b];
+                firstTimestamp = mBucketFirstTimestamp[b];
+            }
+            sum += mBucketSum[b];
+            count += mBucketCount[b];
+        }
+        mCount[sw] = count;
+        mMin[sw] = min;
+        mMax[sw] = max;
+        mSum[sw] = sum;
+        mFirst[sw] = first;
+        mFirstTimestamp[sw] = firstTimestamp;
+    }
+
+    private int series(String address, CropXReading.Quantity quantity, int depth,
+                       boolean create) {
+        int[] probe = mSeriesByProbe.get(address);
+        if (probe == null) {
+            if (!create) {
+                return -1;
+            }
+            probe = new int[QUANTITY_COUNT * MAX_DEPTHS];
+            Arrays.fill(probe, -1);
+            mSeriesByProbe.put(address, probe);
+        }
+        int slot = quantity.ordinal() * MAX_DEPTHS + depth;
+        if (probe[slot] < 0 && create) {
+            if (mSeriesCount == mCapacity) {
+                grow(mCapacity * 2);
+            }
+            probe[slot] = mSeriesCount++;
+        }
+        return probe[slot];
+    }
+
+    private void grow(int capacity) {
+        int windows = capacity * mWindows;
+        int buckets = windows * mBuckets;
+        mLast = grow(mLast, capacity);
+        mLastTimestamp = grow(mLastTimestamp, capacity, Long.MIN_VALUE);
+        mCurrentBucket = grow(mCurrentBucket, windows, Long.MIN_VALUE);
+        mCount = grow(mCount, windows);
+        mMin = grow(mMin, windows);
+        mMax = grow(mMax, windows);
+        mSum = grow(mSum, windows);
+        mFirst = grow(mFirst, windows);
+        mFirstTimestamp = grow(mFirstTimestamp, windows, 0);
+        mBucketId = grow(mBucketId, buckets, Long.MIN_VALUE);
+        mBucketCount = grow(mBucketCount, buckets);
+        mBucketMin = grow(mBucketMin, buckets);
+        mBucketMax = grow(mBucketMax, buckets);
+        mBucketSum = grow(mBucketSum, buckets);
+        mBucketFirst = grow(mBucketFirst, buckets);
+        mBucketFirstTimestamp = grow(mBucketFirstTimestamp, buckets, 0);
+        mCapacity = capacity;
+    }
+
+    private static float[] grow(float[] array, int length) {
+        return array == null ? new float[length] : Arrays.copyOf(array, length);
+    }
+
+    private static double[] grow(double[] array, int length) {
+        return array == null ? new double[length] : Arrays.copyOf(array, length);
+    }
+
+    private static int[] grow(int[] array, int length) {
+        return array == null ? new int[length] : Arrays.copyOf(array, length);
+    }
+
+    private static long[] grow(long[] array, int length, long fill) {
+        int from = array == null ? 0 : array.length;
+        long[] grown = array == null ? new long[length] : Arrays.copyOf(array, length);
+        Arrays.fill(grown, from, length, fill);
+        return grown;
+    }
+}
@@ -0,0 +1,1011 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.example.android.bluetoothlegatt.starcom.CropXReading;
+import com.example.android.bluetoothlegatt.starcom.RecordBatch;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Local, append-only store of sensor readings.
+ *
+ * Readings are fixed-width records (device, timestamp, quantity, depth, value) appended to
+ * memory-mapped segment files, so an append is a few stores into mapped memory and cheap
+ * enough to run inline with notification handling.  When a segment is full a new one is
+ * started.  For every segment and device an in-memory index keeps the time span, the first and
+ * last record and a sparse list of (timestamp, position) entries, every
+ * {@link #INDEX_INTERVAL}th record of the device; range queries skip segments outside the
+ * range and seek within a segment through the sparse entries instead of scanning it.  The index
+ * is rebuilt from the segments when the store is opened, which reads every record, so open it
+ * off the main thread.
+ *
+ * At {@link #RECORD_SIZE} bytes a reading, the segments are only meant to hold what was
+ * received lately.  {@link #compact(long)} drops readings older than a retention limit and
+ * moves the sealed segments into an archive, which holds one series per device, quantity and
+ * depth in the block format of {@link SeriesEncoder}: slowly changing readings at a regular
+ * interval take 1-4 bytes each there, and a query decodes only the blocks of the series and
+ * time range it asks for.  A compaction interrupted after it committed is finished when the
+ * store is next opened.
+ *
+ * Timestamps are epoch milliseconds.  All methods are synchronized.
+ */
+public class ReadingStore implements Closeable {
+    private final static String TAG = ReadingStore.class.getSimpleName();
+
+    /**
+     * Receives readings from {@link #query(String, long, long, Visitor)}, in store order.
+     */
+    public interface Visitor {
+        void onReading(long timestamp, CropXReading.Quantity quantity, int depth, float value);
+    }
+
+    static final int DEFAULT_SEGMENT_RECORDS = 1 << 18;
+    static final int INDEX_INTERVAL = 64;
+
+    // Segment layout: header (magic, version, record count, reserved), then the records.
+    static final int MAGIC = 0x43525331;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    private static final int COUNT_OFFSET = 8;
+    // Record layout: device id, timestamp, quantity, depth, reserved, value.
+    static final int RECORD_SIZE = 20;
+    private static final int DEVICE_OFFSET = 0;
+    private static final int TIMESTAMP_OFFSET = 4;
+    private static final int QUANTITY_OFFSET = 12;
+    private static final int DEPTH_OFFSET = 13;
+    private static final int VALUE_OFFSET = 16;
+
+    // Archive layout: header (magic, version, series count, reserved), one entry per series,
+    // then the blocks of every series.
+    static final int ARCHIVE_VERSION = 2;
+    // Series entry: device id, quantity, depth, ordered, reserved, blocks offset, blocks length,
+    // reading count, first and last timestamp.
+    static final int SERIES_ENTRY_SIZE = 36;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String DEVICES_FILE = "devices.txt";
+    // Written once the archive of a compaction is complete: the number of archives written (0
+    // or 1), then the numbers of the segments and archives they replace, one per line.
+    private static final String COMPACTION_FILE = "compaction.txt";
+
+    private static final CropXReading.Quantity[] QUANTITIES = CropXReading.Quantity.values();
+
+    private final File mDirectory;
+    private final int mSegmentRecords;
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private final List<Archive> mArchives = new ArrayList<Archive>();
+    private final HashMap<String, Integer> mDeviceIds = new HashMap<String, Integer>();
+    private Writer mDevicesWriter;
+    private Segment mActive;
+    private int mNextSegmentNumber;
+    private boolean mClosed;
+
+    public ReadingStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_RECORDS);
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it if needed.
+     *
+     * @param segmentRecords Number of records per segment.
+     */
+    public ReadingStore(File directory, int segmentRecords) throws IOException {
+        mDirectory = directory;
+        mSegmentRecords = segmentRecords;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        loadDevices();
+        finishCompaction();
+        loadSegments();
+    }
+
+    /**
+     * Appends one reading.
+     */
+    public synchronized void append(String address, long timestamp,
+                                    CropXReading.Quantity quantity, int depth, float value)
+            throws IOException {
+        int device = deviceId(address);
+        writable().append(device, timestamp, quantity.ordinal(), depth, value);
+    }
+
+    /**
+     * Appends every depth of a reading, taken at {@code timestamp}.
+     */
+    public synchronized void append(String address, long timestamp, CropXReading reading)
+            throws IOException {
+        int device = deviceId(address);
+        int quantity = reading.getQuantity().ordinal();
+        for (int depth = 0; depth < reading.getDepthCount(); depth++) {
+            writable().append(device, timestamp, quantity, depth, reading.getValue(depth));
+        }
+    }
+
+    /**
+     * Appends every value of a batch of decoded queue records.  Queue records carry epoch
+     * seconds, which are stored as milliseconds.
+     */
+    public synchronized void append(String address, RecordBatch batch) throws IOException {
+        int device = deviceId(address);
+        long[] timestamps = batch.getTimestamps();
+        // Record by record, so the readings of the device stay in time order.
+        for (int i = 0; i < batch.size(); i++) {
+            for (CropXReading.Quantity quantity : QUANTITIES) {
+                for (int depth = 0; depth < batch.getDepthCount(); depth++) {
+                    writable().append(device, timestamps[i] * 1000, quantity.ordinal(), depth,
+                            batch.getColumn(quantity, depth)[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits the readings of {@code address} with {@code from <= timestamp <= to}.
+     *
+     * @return the number of readings visited.
+     */
+    public synchronized int query(String address, long from, long to, Visitor visitor) {
+        Integer device = mDeviceIds.get(address);
+        if (device == null) {
+            return 0;
+        }
+        int visited = 0;
+        for (Archive archive : mArchives) {
+            visited += archive.query(device, from, to, visitor);
+        }
+        for (Segment segment : mSegments) {
+            visited += segment.query(device, from, to, visitor);
+        }
+        return visited;
+    }
+
+    /**
+     * Writes one series of {@code address}, the readings of {@code quantity} at {@code depth}
+     * with {@code from <= timestamp <= to}, to {@code out} in the compressed block format of
+     * {@link SeriesEncoder}.
+     *
+     * @return the number of readings written.
+     */
+    public synchronized int exportSeries(String address, final CropXReading.Quantity quantity,
+                                         final int depth, long from, long to, OutputStream out)
+            throws IOException {
+        final SeriesEncoder encoder = new SeriesEncoder(out);
+        final IOException[] error = new IOException[1];
+        final int[] written = new int[1];
+        query(address, from, to, new Visitor() {
+            @Override
+            public void onReading(long timestamp, CropXReading.Quantity q, int d, float value) {
+                if (q != quantity || d != depth || error[0] != null) {
+                    return;
+                }
+                try {
+                    encoder.add(timestamp, value);
+                    written[0]++;
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        encoder.flush();
+        return written[0];
+    }
+
+    /**
+     * @return the number of readings stored.
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (Archive archive : mArchives) {
+            size += archive.mCount;
+        }
+        for (Segment segment : mSegments) {
+            size += segment.mCount;
+        }
+        return size;
+    }
+
+    synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Writes the open segment back to storage.  Full segments are written when they are
+     * sealed.
+     */
+    public synchronized void flush() {
+        if (mActive != null) {
+            mActive.mBuffer.force();
+        }
+    }
+
+    /**
+     * Moves the sealed segments into a new archive, without the readings older than
+     * {@code retainFrom}, and rewrites the archives that hold such readings along with them.
+     * The segment being written is left alone.
+     */
+    public synchronized void compact(long retainFrom) throws IOException {
+        List<Segment> sealed = new ArrayList<Segment>(mSegments);
+        if (mActive != null) {
+            sealed.remove(mActive);
+        }
+        List<Archive> expired = new ArrayList<Archive>();
+        for (Archive archive : mArchives) {
+            if (archive.mMinTimestamp < retainFrom) {
+                expired.add(archive);
+            }
+        }
+        if (sealed.isEmpty() && expired.isEmpty()) {
+            return;
+        }
+
+        TreeMap<Long, SeriesWriter> series = new TreeMap<Long, SeriesWriter>();
+        for (Archive archive : expired) {
+            archive.copyTo(series, retainFrom);
+        }
+        for (Segment segment : sealed) {
+            segment.copyTo(series, retainFrom);
+        }
+        long retained = 0;
+        for (SeriesWriter writer : series.values()) {
+            retained += writer.mCount;
+        }
+
+        // Write the archive next to the first of the files it replaces, commit, then move it
+        // over that file and delete the others.
+        int[] numbers = new int[expired.size() + sealed.size()];
+        for (int i = 0; i < expired.size(); i++) {
+            numbers[i] = expired.get(i).mNumber;
+        }
+        for (int i = 0; i < sealed.size(); i++) {
+            numbers[expired.size() + i] = sealed.get(i).mNumber;
+        }
+        Arrays.sort(numbers);
+        int archives = 0;
+        if (retained > 0) {
+            Archive.write(new File(mDirectory, segmentName(numbers[0]) + TEMP_SUFFIX),
+                    series.values());
+            archives = 1;
+        }
+        writeCompaction(archives, numbers);
+
+        mSegments.removeAll(sealed);
+        mArchives.removeAll(expired);
+        replaceSegments(archives, numbers);
+        deleteCompaction();
+        long bytes = 0;
+        if (archives > 0) {
+            File file = new File(mDirectory, segmentName(numbers[0]));
+            Archive archive = Archive.open(file, numbers[0]);
+            if (archive == null) {
+                throw new IOException("Unable to read " + file);
+            }
+            addArchive(archive);
+            bytes = archive.mData.length;
+        }
+        Log.i(TAG, "Compacted " + sealed.size() + " segments and " + expired.size()
+                + " archives, " + retained + " readings kept in " + bytes + " bytes");
+    }
+
+    /**
+     * Prints how many readings the segments and the archives hold and in how many bytes, and
+     * how fast the archives decode, timed by decoding all of them.
+     */
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        long readings = 0;
+        long bytes = 0;
+        for (Segment segment : mSegments) {
+            readings += segment.mCount;
+            bytes += segment.mBuffer.capacity();
+        }
+        writer.println(prefix + readings + " readings in " + mSegments.size() + " segments, "
+                + bytes + " bytes");
+        readings = 0;
+        bytes = 0;
+        long start = System.nanoTime();
+        for (Archive archive : mArchives) {
+            readings += archive.decodeAll();
+            bytes += archive.mData.length;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (readings > 0) {
+            writer.println(prefix + String.format("%d readings in %d archives, %d bytes, "
+                    + "%.2f bytes per reading, decoded at %.1f M readings/s", readings,
+                    mArchives.size(), bytes, bytes / (double) readings,
+                    readings * 1000.0 / Math.max(elapsed, 1)));
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        mClosed = true;
+        mSegments.clear();
+        mArchives.clear();
+        mActive = null;
+        if (mDevicesWriter != null) {
+            mDevicesWriter.close();
+            mDevicesWriter = null;
+        }
+    }
+
+    private Segment writable() throws IOException {
+        if (mClosed) {
+            throw new IOException("Store is closed");
+        }
+        if (mActive == null || mActive.isFull()) {
+            if (mActive != null) {
+                mActive.mBuffer.force();
+            }
+            int number = mNextSegmentNumber++;
+            mActive = Segment.create(new File(mDirectory, segmentName(number)), number,
+                    mSegmentRecords);
+            mSegments.add(mActive);
+        }
+        return mActive;
+    }
+
+    private int deviceId(String address) throws IOException {
+        Integer id = mDeviceIds.get(address);
+        if (id != null) {
+            return id;
+        }
+        if (mDevicesWriter == null) {
+            mDevicesWriter = new FileWriter(new File(mDirectory, DEVICES_FILE), true);
+        }
+        mDevicesWriter.write(address);
+        mDevicesWriter.write('\n');
+        mDevicesWriter.flush();
+        int newId = mDeviceIds.size();
+        mDeviceIds.put(address, newId);
+        return newId;
+    }
+
+    private void loadDevices() throws IOException {
+        File file = new File(mDirectory, DEVICES_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    mDeviceIds.put(line, mDeviceIds.size());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Keeps the archives in file order.
+    private void addArchive(Archive archive) {
+        int i = 0;
+        while (i < mArchives.size() && mArchives.get(i).mNumber < archive.mNumber) {
+            i++;
+        }
+        mArchives.add(i, archive);
+    }
+
+    /**
+     * Moves the first {@code packed} temporary files over the segments or archives numbered
+     * {@code numbers} and deletes the rest of those.  Safe to repeat after a crash.
+     */
+    private void replaceSegments(int packed, int[] numbers) throws IOException {
+        for (int i = 0; i < numbers.length; i++) {
+            File file = new File(mDirectory, segmentName(numbers[i]));
+            if (i < packed) {
+                File temp = new File(mDirectory, segmentName(numbers[i]) + TEMP_SUFFIX);
+                // Already moved if it is gone.
+                if (temp.exists() && !temp.renameTo(file)) {
+                    throw new IOException("Unable to replace " + file);
+                }
+            } else if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+    }
+
+    private void writeCompaction(int packed, int[] numbers) throws IOException {
+        StringBuilder text = new StringBuilder().append(packed).append('\n');
+        for (int number : numbers) {
+            text.append(number).append('\n');
+        }
+        // Written aside and renamed, so the commit is either complete or absent.
+        File temp = new File(mDirectory, COMPACTION_FILE + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(text.toString().getBytes("US-ASCII"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(new File(mDirectory, COMPACTION_FILE))) {
+            throw new IOException("Unable to commit the compaction");
+        }
+    }
+
+    private void deleteCompaction() {
+        File file = new File(mDirectory, COMPACTION_FILE);
+        if (!file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    // Rolls a committed compaction forward.  Without a commit, the packed segments may be
+    // incomplete and the originals are all there; loadSegments() deletes the former.
+    private void finishCompaction() throws IOException {
+        File file = new File(mDirectory, COMPACTION_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        List<Integer> lines = new ArrayList<Integer>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(Integer.parseInt(line));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt " + file);
+        } finally {
+            reader.close();
+        }
+        if (lines.isEmpty()) {
+            throw new IOException("Corrupt " + file);
+        }
+        int[] numbers = new int[lines.size() - 1];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = lines.get(i + 1);
+        }
+        replaceSegments(lines.get(0), numbers);
+        deleteCompaction();
+        Log.i(TAG, "Finished an interrupted compaction of " + numbers.length + " segments");
+    }
+
+    private void loadSegments() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Left over from a compaction interrupted before it committed; the originals
+                // are still there.
+                if (!file.delete()) {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+                continue;
+            }
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            int number;
+            try {
+                number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (readVersion(file) == ARCHIVE_VERSION) {
+                Archive archive = Archive.open(file, number);
+                if (archive == null) {
+                    Log.w(TAG, "Skipping unreadable archive " + file);
+                    continue;
+                }
+                mArchives.add(archive);
+            } else {
+                Segment segment = Segment.open(file, number);
+                if (segment == null) {
+                    Log.w(TAG, "Skipping unreadable segment " + file);
+                    continue;
+                }
+                mSegments.add(segment);
+            }
+            mNextSegmentNumber = Math.max(mNextSegmentNumber, number + 1);
+        }
+        if (!mSegments.isEmpty()) {
+            Segment last = mSegments.get(mSegments.size() - 1);
+            if (!last.isFull()) {
+                mActive = last;
+            }
+        }
+    }
+
+    private static String segmentName(int number) {
+        return SEGMENT_PREFIX + String.format("%08d", number) + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * @return the version in the header of a segment or archive file, or -1 if it has none.
+     */
+    private static int readVersion(File file) throws IOException {
+        byte[] header = new byte[8];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < header.length) {
+                return -1;
+            }
+            raf.readFully(header);
+        } finally {
+            raf.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.getInt(0) == MAGIC ? buffer.getInt(4) : -1;
+    }
+
+    /**
+     * Per-device index of one segment.
+     */
+    private static final class DeviceIndex {
+        int mFirst;
+        int mLast;
+        int mCount;
+        long mMinTimestamp = Long.MAX_VALUE;
+        long mMaxTimestamp = Long.MIN_VALUE;
+        long mLastTimestamp = Long.MIN_VALUE;
+        // False once a reading went in with an earlier timestamp than the one before it;
+        // queries then can not seek or stop early.
+        boolean mOrdered = true;
+        long[] mTimestamps = new long[4];
+        int[] mPositions = new int[4];
+        int mEntries;
+
+        void add(int position, long timestamp) {
+            if (mCount == 0) {
+                mFirst = position;
+            }
+            if (timestamp < mLastTimestamp) {
+                mOrdered = false;
+            }
+            if (mCount % INDEX_INTERVAL == 0) {
+                if (mEntries == mTimestamps.length) {
+                    mTimestamps = Arrays.copyOf(mTimestamps, mEntries * 2);
+                    mPositions = Arrays.copyOf(mPositions, mEntries * 2);
+                }
+                mTimestamps[mEntries] = timestamp;
+                mPositions[mEntries] = position;
+                mEntries++;
+            }
+            mLast = position;
+            mCount++;
+            mLastTimestamp = timestamp;
+            mMinTimestamp = Math.min(mMinTimestamp, timestamp);
+            mMaxTimestamp = Math.max(mMaxTimestamp, timestamp);
+        }
+
+        /**
+         * @return a position at or before the first reading with a timestamp of at least
+         * {@code from}.
+         */
+        int seek(long from) {
+            if (!mOrdered) {
+                return mFirst;
+            }
+            int low = 0;
+            int high = mEntries - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (mTimestamps[mid] < from) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found < 0 ? mFirst : mPositions[found];
+        }
+    }
+
+    private static final class Segment {
+        final File mFile;
+        final int mNumber;
+        final MappedByteBuffer mBuffer;
+        final int mCapacity;
+        int mCount;
+        final SparseArray<DeviceIndex> mIndex = new SparseArray<DeviceIndex>();
+
+        private Segment(File file, int number, MappedByteBuffer buffer, int capacity) {
+            mFile = file;
+            mNumber = number;
+            mBuffer = buffer;
+            mCapacity = capacity;
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        static Segment create(File file, int number, int capacity) throws IOException {
+            Segment segment = new Segment(file, number,
+                    map(file, HEADER_SIZE + (long) capacity * RECORD_SIZE), capacity);
+            segment.mBuffer.putInt(0, MAGIC);
+            segment.mBuffer.putInt(4, VERSION);
+            segment.mBuffer.putInt(COUNT_OFFSET, 0);
+            return segment;
+        }
+
+        /**
+         * @return the segment, or null if the file is not a segment.
+         */
+        static Segment open(File file, int number) throws IOException {
+            long length = file.length();
+            if (length < HEADER_SIZE) {
+                return null;
+            }
+            int capacity = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+            Segment segment = new Segment(file, number, map(file, length), capacity);
+            if (segment.mBuffer.getInt(0) != MAGIC || segment.mBuffer.getInt(4) != VERSION) {
+                return null;
+            }
+            int count = Math.min(segment.mBuffer.getInt(COUNT_OFFSET), capacity);
+            for (int position = 0; position < count; position++) {
+                segment.index(position);
+            }
+            segment.mCount = count;
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, long length) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < length) {
+                    raf.setLength(length);
+                }
+                // The mapping stays valid after the channel is closed.
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            } finally {
+                raf.close();
+            }
+        }
+
+        boolean isFull() {
+            return mCount == mCapacity;
+        }
+
+        void append(int device, long timestamp, int quantity, int depth, float value) {
+            int offset = HEADER_SIZE + mCount * RECORD_SIZE;
+            mBuffer.putInt(offset + DEVICE_OFFSET, device);
+            mBuffer.putLong(offset + TIMESTAMP_OFFSET, timestamp);
+            mBuffer.put(offset + QUANTITY_OFFSET, (byte) quantity);
+            mBuffer.put(offset + DEPTH_OFFSET, (byte) depth);
+            mBuffer.putFloat(offset + VALUE_OFFSET, value);
+            index(mCount);
+            // The count goes last, so a record is only visible once it is complete.
+            mBuffer.putInt(COUNT_OFFSET, ++mCount);
+        }
+
+        void copyTo(Map<Long, SeriesWriter> series, long retainFrom) throws IOException {
+            for (int position = 0; position < mCount; position++) {
+                int offset = HEADER_SIZE + position * RECORD_SIZE;
+                long timestamp = mBuffer.getLong(offset + TIMESTAMP_OFFSET);
+                if (timestamp >= retainFrom) {
+                    SeriesWriter.get(series, mBuffer.getInt(offset + DEVICE_OFFSET),
+                            mBuffer.get(offset + QUANTITY_OFFSET),
+                            mBuffer.get(offset + DEPTH_OFFSET))
+                            .add(timestamp, mBuffer.getFloat(offset + VALUE_OFFSET));
+                }
+            }
+        }
+
+        int query(int device, long from, long to, Visitor visitor) {
+            DeviceIndex index = mIndex.get(device);
+            if (index == null || index.mMaxTimestamp < from || index.mMinTimestamp > to) {
+                return 0;
+            }
+            int visited = 0;
+            for (int p = index.seek(from); p <= index.mLast; p++) {
+                int offset = HEADER_SIZE + p * RECORD_SIZE;
+                if (mBuffer.getInt(offset + DEVICE_OFFSET) != device) {
+                    continue;
+                }
+                long timestamp = mBuffer.getLong(offset + TIMESTAMP_OFFSET);
+                if (timestamp < from) {
+                    continue;
+                }
+                if (timestamp > to) {
+                    if (index.mOrdered) {
+                        break;
+                    }
+                    continue;
+                }
+                visitor.onReading(timestamp, QUANTITIES[mBuffer.get(offset + QUANTITY_OFFSET)],
+                        mBuffer.get(offset + DEPTH_OFFSET),
+                        mBuffer.getFloat(offset + VALUE_OFFSET));
+                visited++;
+            }
+            return visited;
+        }
+
+        private void index(int position) {
+            int offset = HEADER_SIZE + position * RECORD_SIZE;
+            int device = mBuffer.getInt(offset + DEVICE_OFFSET);
+            DeviceIndex index = mIndex.get(device);
+            if (index == null) {
+                index = new DeviceIndex();
+                mIndex.put(device, index);
+            }
+            index.add(position, mBuffer.getLong(offset + TIMESTAMP_OFFSET));
+        }
+    }
+
+    /**
+     * One series of an archive.
+     */
+    private static final class Series {
+        int mDevice;
+        int mQuantity;
+        int mDepth;
+        // Timestamps never decrease, so blocks can be skipped by their headers.
+        boolean mOrdered;
+        int mOffset;
+        int mLength;
+        int mCount;
+        long mMinTimestamp;
+        long mMaxTimestamp;
+    }
+
+    /**
+     * Encodes one series of a compaction into memory.
+     */
+    private static final class SeriesWriter {
+        final int mDevice;
+        final int mQuantity;
+        final int mDepth;
+        final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        final SeriesEncoder mEncoder = new SeriesEncoder(mOut);
+        int mCount;
+        boolean mOrdered = true;
+        long mMinTimestamp = Long.MAX_VALUE;
+        long mMaxTimestamp = Long.MIN_VALUE;
+        long mLastTimestamp = Long.MIN_VALUE;
+
+        private SeriesWriter(int device, int quantity, int depth) {
+            mDevice = device;
+            mQuantity = quantity;
+            mDepth = depth;
+        }
+
+        static SeriesWriter get(Map<Long, SeriesWriter> series, int device, int quantity,
+                                int depth) {
+            long key = ((long) device << 16) | (quantity << 8) | depth;
+            SeriesWriter writer = series.get(key);
+            if (writer == null) {
+                writer = new SeriesWriter(device, quantity, depth);
+                series.put(key, writer);
+            }
+            return writer;
+        }
+
+        void add(long timestamp, float value) throws IOException {
+            mEncoder.add(timestamp, value);
+            if (timestamp < mLastTimestamp) {
+                mOrdered = false;
+            }
+            mLastTimestamp = timestamp;
+            mMinTimestamp = Math.min(mMinTimestamp, timestamp);
+            mMaxTimestamp = Math.max(mMaxTimestamp, timestamp);
+            mCount++;
+        }
+    }
+
+    /**
+     * A compacted, read-only file of series, held in memory once opened.
+     */
+    private static final class Archive {
+        final int mNumber;
+        final byte[] mData;
+        final Series[] mSeries;
+        final long mCount;
+        final long mMinTimestamp;
+        private final SeriesDecoder mDecoder = new SeriesDecoder();
+
+        private Archive(int number, byte[] data, Series[] series) {
+            mNumber = number;
+            mData = data;
+            mSeries = series;
+            long count = 0;
+            long minTimestamp = Long.MAX_VALUE;
+            for (Series entry : series) {
+                count += entry.mCount;
+                minTimestamp = Math.min(minTimestamp, entry.mMinTimestamp);
+            }
+            mCount = count;
+            mMinTimestamp = minTimestamp;
+        }
+
+        static void write(File file, Collection<SeriesWriter> series) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + series.size() * SERIES_ENTRY_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(ARCHIVE_VERSION).putInt(series.size()).putInt(0);
+            int offset = header.capacity();
+            for (SeriesWriter writer : series) {
+                writer.mEncoder.flush();
+                header.putInt(writer.mDevice)
+                        .put((byte) writer.mQuantity)
+                        .put((byte) writer.mDepth)
+                        .put((byte) (writer.mOrdered ? 1 : 0))
+                        .put((byte) 0)
+                        .putInt(offset)
+                        .putInt(writer.mOut.size())
+                        .putInt(writer.mCount)
+                        .putLong(writer.mMinTimestamp)
+                        .putLong(writer.mMaxTimestamp);
+                offset += writer.mOut.size();
+            }
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(header.array());
+                for (SeriesWriter writer : series) {
+                    writer.mOut.writeTo(out);
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * @return the archive, or null if the file is not an archive.
+         */
+        static Archive open(File file, int number) throws IOException {
+            long length = file.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                return null;
+            }
+            byte[] data = new byte[(int) length];
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.readFully(data);
+            } finally {
+                raf.close();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            int count = buffer.getInt(COUNT_OFFSET);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != ARCHIVE_VERSION || count < 0
+                    || HEADER_SIZE + (long) count * SERIES_ENTRY_SIZE > length) {
+                return null;
+            }
+            Series[] series = new Series[count];
+            for (int i = 0; i < count; i++) {
+                buffer.position(HEADER_SIZE + i * SERIES_ENTRY_SIZE);
+                Series entry = new Series();
+                entry.mDevice = buffer.getInt();
+                entry.mQuantity = buffer.get();
+                entry.mDepth = buffer.get();
+                entry.mOrdered = buffer.get() != 0;
+                buffer.get();
+                entry.mOffset = buffer.getInt();
+                entry.mLength = buffer.getInt();
+                entry.mCount = buffer.getInt();
+                entry.mMinTimestamp = buffer.getLong();
+                entry.mMaxTimestamp = buffer.getLong();
+                if (entry.mQuantity < 0 || entry.mQuantity >= QUANTITIES.length || entry.mOffset < 0
+                        || entry.mLength < 0 || (long) entry.mOffset + entry.mLength > length) {
+                    return null;
+                }
+                series[i] = entry;
+            }
+            return new Archive(number, data, series);
+        }
+
+        void copyTo(Map<Long, SeriesWriter> series, long retainFrom) throws IOException {
+            for (Series entry : mSeries) {
+                if (entry.mMaxTimestamp < retainFrom) {
+                    continue;
+                }
+                SeriesWriter writer = null;
+                int end = entry.mOffset + entry.mLength;
+                for (int offset = entry.mOffset; offset < end; ) {
+                    offset = mDecoder.reset(mData, offset);
+                    while (mDecoder.next()) {
+                        if (mDecoder.getTimestamp() < retainFrom) {
+                            continue;
+                        }
+                        if (writer == null) {
+                            writer = SeriesWriter.get(series, entry.mDevice, entry.mQuantity,
+                                    entry.mDepth);
+                        }
+                        writer.add(mDecoder.getTimestamp(), mDecoder.getValue());
+                    }
+                }
+            }
+        }
+
+        int query(int device, long from, long to, Visitor visitor) {
+            int visited = 0;
+            for (Series entry : mSeries) {
+                if (entry.mDevice != device || entry.mMaxTimestamp < from
+                        || entry.mMinTimestamp > to) {
+                    continue;
+                }
+                CropXReading.Quantity quantity = QUANTITIES[entry.mQuantity];
+                int end = entry.mOffset + entry.mLength;
+                int offset = entry.mOrdered
+                        ? SeriesDecoder.findBlock(mData, entry.mOffset, entry.mLength, from)
+                        : entry.mOffset;
+                while (offset >= 0 && offset < end) {
+                    if (entry.mOrdered
+                            && SeriesDecoder.getBlockFirstTimestamp(mData, offset) > to) {
+                        break;
+                    }
+                    offset = mDecoder.reset(mData, offset);
+                    while (mDecoder.next()) {
+                        long timestamp = mDecoder.getTimestamp();
+                        if (timestamp >= from && timestamp <= to) {
+                            visitor.onReading(timestamp, quantity, entry.mDepth,
+                                    mDecoder.getValue());
+                            visited++;
+                        }
+                    }
+                }
+            }
+            return visited;
+        }
+
+        /**
+         * @return the number of readings decoded.
+         */
+        long decodeAll() {
+            long decoded = 0;
+            for (Series entry : mSeries) {
+                int end = entry.mOffset + entry.mLength;
+                for (int offset = entry.mOffset; offset < end; ) {
+                    offset = mDecoder.reset(mData, offset);
+                    while (mDecoder.next()) {
+                        decoded++;
+                    }
+                }
+            }
+            return decoded;
+        }
+    }
+}
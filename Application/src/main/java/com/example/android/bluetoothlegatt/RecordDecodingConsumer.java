@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import com.example.android.bluetoothlegatt.starcom.QueueRecordDecoder;
+
+import java.io.Flushable;
+
+/**
+ * Feeds the records of a queue drain into a {@link QueueRecordDecoder} as they arrive, so
+ * batches are produced while the transfer runs, and flushes the last batch when it ends.
+ * Behind a {@link CheckpointedConsumer}, the partial batch is also flushed before every
+ * checkpoint.
+ */
+public class RecordDecodingConsumer implements BulkTransfer.Consumer, Flushable {
+
+    public interface Listener {
+        /**
+         * Called after the last batch has been handed out.
+         *
+         * @param failure 0 if the queue was drained, otherwise one of the
+         *                {@code PendingCommand.FAILURE_*} constants.
+         */
+        void onDrainEnd(QueueRecordDecoder decoder, int failure);
+    }
+
+    private final QueueRecordDecoder mDecoder;
+    private final Listener mListener;
+
+    public RecordDecodingConsumer(QueueRecordDecoder decoder, Listener listener) {
+        mDecoder = decoder;
+        mListener = listener;
+    }
+
+    @Override
+    public void onRecord(byte[] buffer, int offset, int length) {
+        mDecoder.decode(buffer, offset, length);
+    }
+
+    @Override
+    public void flush() {
+        mDecoder.flush();
+    }
+
+    @Override
+    public void onComplete(long records) {
+        mDecoder.flush();
+        if (mListener != null) {
+            mListener.onDrainEnd(mDecoder, 0);
+        }
+    }
+
+    @Override
+    public void onFailure(long records, int reason) {
+        mDecoder.flush();
+        if (mListener != null) {
+            mListener.onDrainEnd(mDecoder, reason);
+        }
+    }
+}
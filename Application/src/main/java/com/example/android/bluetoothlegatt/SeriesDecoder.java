@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Decodes the blocks written by {@link SeriesEncoder}, one point at a time.
+ *
+ * Blocks are located from their headers alone: {@link #findBlock(byte[], int, int, long)}
+ * walks the headers to the first block that reaches a timestamp, so reading a range only
+ * decodes the blocks that cover it.  A decoder can be reused for any number of blocks.
+ * <pre>
+ *     int offset = SeriesDecoder.findBlock(data, 0, length, from);
+ *     while (offset >= 0 &amp;&amp; offset &lt; length) {
+ *         offset = decoder.reset(data, offset);
+ *         while (decoder.next()) {
+ *             ...decoder.getTimestamp(), decoder.getValue()...
+ *         }
+ *     }
+ * </pre>
+ */
+public class SeriesDecoder {
+
+    private byte[] mData;
+    private int mBitPosition;
+    private int mRemaining;
+    private boolean mFirst;
+    private long mTimestamp;
+    private long mDelta;
+    private int mValueBits;
+    private int mLeading;
+    private int mTrailing;
+
+    /**
+     * Finds the first block, at or after {@code offset}, whose last timestamp is at least
+     * {@code from}, without decoding any point.
+     *
+     * @return the offset of that block, or -1.
+     */
+    public static int findBlock(byte[] data, int offset, int length, long from) {
+        int end = offset + length;
+        while (offset + SeriesEncoder.HEADER_SIZE <= end) {
+            if (getLong(data, offset + 12) >= from) {
+                return offset;
+            }
+            offset += SeriesEncoder.HEADER_SIZE + getInt(data, offset + 20);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of points in the block at {@code offset}.
+     */
+    public static int getBlockCount(byte[] data, int offset) {
+        return getInt(data, offset);
+    }
+
+    /**
+     * @return the first timestamp of the block at {@code offset}.
+     */
+    public static long getBlockFirstTimestamp(byte[] data, int offset) {
+        return getLong(data, offset + 4);
+    }
+
+    /**
+     * @return the last timestamp of the block at {@code offset}.
+     */
+    public static long getBlockLastTimestamp(byte[] data, int offset) {
+        return getLong(data, offset + 12);
+    }
+
+    /**
+     * Starts decoding the block at {@code offset}.
+     *
+     * @return the offset of the next block.
+     */
+    public int reset(byte[] data, int offset) {
+        mData = data;
+        mRemaining = getInt(data, offset);
+        mTimestamp = getLong(data, offset + 4);
+        mBitPosition = (offset + SeriesEncoder.HEADER_SIZE) * 8;
+        mFirst = true;
+        mDelta = 0;
+        mLeading = 0;
+        mTrailing = 0;
+        return offset + SeriesEncoder.HEADER_SIZE + getInt(data, offset + 20);
+    }
+
+    /**
+     * Decodes the next point of the block.
+     *
+     * @return false once every point of the block has been decoded.
+     */
+    public boolean next() {
+        if (mRemaining == 0) {
+            return false;
+        }
+        mRemaining--;
+        if (mFirst) {
+            mFirst = false;
+            mValueBits = (int) readBits(32);
+            return true;
+        }
+        mDelta += readDeltaOfDelta();
+        mTimestamp += mDelta;
+        if (readBits(1) != 0) {
+            if (readBits(1) != 0) {
+                mLeading = (int) readBits(5);
+                int length = (int) readBits(5) + 1;
+                mTrailing = 32 - mLeading - length;
+            }
+            int length = 32 - mLeading - mTrailing;
+            mValueBits ^= (int) (readBits(length) << mTrailing);
+        }
+        return true;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public float getValue() {
+        return Float.intBitsToFloat(mValueBits);
+    }
+
+    private long readDeltaOfDelta() {
+        int bits;
+        if (readBits(1) == 0) {
+            return 0;
+        } else if (readBits(1) == 0) {
+            bits = 8;
+        } else if (readBits(1) == 0) {
+            bits = 14;
+        } else if (readBits(1) == 0) {
+            bits = 22;
+        } else {
+            bits = 64;
+        }
+        long zigzag = readBits(bits);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private long readBits(int bits) {
+        long value = 0;
+        while (bits > 0) {
+            int available = 8 - (mBitPosition & 7);
+            int take = Math.min(available, bits);
+            int chunk = (mData[mBitPosition >>> 3] >>> (available - take)) & ((1 << take) - 1);
+            value = (value << take) | chunk;
+            mBitPosition += take;
+            bits -= take;
+        }
+        return value;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ((long) getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Streams a (timestamp, value) series into compressed, independently decodable blocks.
+ *
+ * Sensor series change slowly and arrive at a regular interval, so each block stores the
+ * first timestamp and value as is and every following point as
+ * <ul>
+ *     <li>the delta of the timestamp delta, zigzag encoded into a 1, 10, 17, 26 or 68 bit
+ *     bucket ({@code 0}, {@code 10}, {@code 110}, {@code 1110}, {@code 1111} prefix);</li>
+ *     <li>the XOR of the float bits with the previous value: {@code 0} for an unchanged value,
+ *     {@code 10} and the meaningful bits if they fit the window of the previous XOR, or
+ *     {@code 11}, 5 bits of leading zeros, 5 bits of length - 1 and the meaningful bits.</li>
+ * </ul>
+ * A block is written when it holds {@link #DEFAULT_BLOCK_RECORDS} points, or on
+ * {@link #flush()}, behind a {@link #HEADER_SIZE} byte header (count, first and last
+ * timestamp, payload length) that lets {@link SeriesDecoder} skip to the block it needs.
+ */
+public class SeriesEncoder {
+
+    public static final int HEADER_SIZE = 24;
+    public static final int DEFAULT_BLOCK_RECORDS = 1024;
+
+    // Longest encoding of one point: timestamp bucket plus value with a new window.
+    private static final int MAX_POINT_BITS = 4 + 64 + 2 + 5 + 5 + 32;
+
+    private final OutputStream mOut;
+    private final int mBlockRecords;
+    private final byte[] mBlock;
+    private int mBitPosition;
+    private int mCount;
+    private long mFirstTimestamp;
+    private long mTimestamp;
+    private long mDelta;
+    private int mValueBits;
+    private int mLeading;
+    private int mTrailing;
+    private long mBytesWritten;
+
+    public SeriesEncoder(OutputStream out) {
+        this(out, DEFAULT_BLOCK_RECORDS);
+    }
+
+    public SeriesEncoder(OutputStream out, int blockRecords) {
+        mOut = out;
+        mBlockRecords = blockRecords;
+        mBlock = new byte[HEADER_SIZE + (blockRecords * MAX_POINT_BITS + 7) / 8 + 8];
+        reset();
+    }
+
+    /**
+     * Adds a point.  Timestamps should not decrease, although decreasing ones are encoded
+     * correctly, only less compactly.
+     */
+    public void add(long timestamp, float value) throws IOException {
+        int bits = Float.floatToRawIntBits(value);
+        if (mCount == 0) {
+            mFirstTimestamp = timestamp;
+            writeBits(bits & 0xffffffffL, 32);
+        } else {
+            long delta = timestamp - mTimestamp;
+            writeTimestamp(delta - mDelta);
+            mDelta = delta;
+            writeValue(bits ^ mValueBits);
+        }
+        mTimestamp = timestamp;
+        mValueBits = bits;
+        if (++mCount == mBlockRecords) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Writes the points added since the last full block as a block of their own.
+     */
+    public void flush() throws IOException {
+        if (mCount > 0) {
+            writeBlock();
+        }
+        mOut.flush();
+    }
+
+    /**
+     * @return the number of bytes written to the stream so far.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void writeTimestamp(long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        long zigzag = (deltaOfDelta << 1) ^ (deltaOfDelta >> 63);
+        if (zigzag < (1L << 8)) {
+            writeBits(0x2, 2);
+            writeBits(zigzag, 8);
+        } else if (zigzag < (1L << 14)) {
+            writeBits(0x6, 3);
+            writeBits(zigzag, 14);
+        } else if (zigzag < (1L << 22)) {
+            writeBits(0xe, 4);
+            writeBits(zigzag, 22);
+        } else {
+            writeBits(0xf, 4);
+            writeBits(zigzag, 64);
+        }
+    }
+
+    private void writeValue(int xor) {
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+        int trailing = Integer.numberOfTrailingZeros(xor);
+        if (mLeading >= 0 && leading >= mLeading && trailing >= mTrailing) {
+            writeBits(0x2, 2);
+            writeBits((xor & 0xffffffffL) >>> mTrailing, 32 - mLeading - mTrailing);
+            return;
+        }
+        int length = 32 - leading - trailing;
+        writeBits(0x3, 2);
+        writeBits(leading, 5);
+        writeBits(length - 1, 5);
+        writeBits((xor & 0xffffffffL) >>> trailing, length);
+        mLeading = leading;
+        mTrailing = trailing;
+    }
+
+    private void writeBits(long value, int bits) {
+        while (bits > 0) {
+            int free = 8 - (mBitPosition & 7);
+            int take = Math.min(free, bits);
+            int chunk = (int) (value >>> (bits - take)) & ((1 << take) - 1);
+            mBlock[mBitPosition >>> 3] |= (byte) (chunk << (free - take));
+            mBitPosition += take;
+            bits -= take;
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        int payloadLength = (mBitPosition + 7) / 8 - HEADER_SIZE;
+        putInt(0, mCount);
+        putLong(4, mFirstTimestamp);
+        putLong(12, mTimestamp);
+        putInt(20, payloadLength);
+        mOut.write(mBlock, 0, HEADER_SIZE + payloadLength);
+        mBytesWritten += HEADER_SIZE + payloadLength;
+        Arrays.fill(mBlock, 0, HEADER_SIZE + payloadLength, (byte) 0);
+        reset();
+    }
+
+    private void reset() {
+        mBitPosition = HEADER_SIZE * 8;
+        mCount = 0;
+        mDelta = 0;
+        mLeading = -1;
+        mTrailing = 0;
+    }
+
+    private void putInt(int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            mBlock[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private void putLong(int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            mBlock[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
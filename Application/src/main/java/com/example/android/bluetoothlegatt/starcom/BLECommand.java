@@ -1,9 +1,5 @@
 package com.example.android.bluetoothlegatt.starcom;
 
-import android.util.Log;
-
-import static com.example.android.bluetoothlegatt.starcom.Sha256.bytesToHex;
-
 public enum BLECommand {
     ReadVersion("Read version","get_ver"),
     Restart("Restart", "restart"),
@@ -15,40 +11,38 @@ public enum BLECommand {
     CropXGetTemp("CropX get temp", "get_cropx_temp"),
     CropXGetEc("CropX get ec", "get_cropx_ec"),
     CropXGetQueue1("CropX get queue 1", "get_queue:1"),
-    CropXGetQueue2("CropX get queue 2", "get_queue:2");
+    CropXGetQueue2("CropX get queue 2", "get_queue:2"),
+    // Commands that take an argument, sent as "<value>:<argument>".
+    CropXSetState("CropX set state", "set_state", true),
+    CropXGetQueue("CropX get queue", "get_queue", true);
 
     private String mLabel;
     private String mValue;
-
-    private static final String TAG = BLECommand.class.getSimpleName();
+    private boolean mParameterized;
+    // Leading part of the reply that identifies this command, see ProtocolRegistry.
+    private String mResponseKey;
+    // Wire encoding, built once: the whole command, or "<value>:" for parameterized commands.
+    private byte[] mPayload;
 
     BLECommand(String mLabel, String mValue ) {
+        this(mLabel, mValue, false);
+    }
+
+    BLECommand(String mLabel, String mValue, boolean mParameterized) {
         this.mLabel = mLabel;
         this.mValue = mValue;
+        this.mParameterized = mParameterized;
+        int separator = mValue.indexOf(CommandCodec.ARGUMENT_SEPARATOR);
+        this.mResponseKey = separator < 0 ? mValue : mValue.substring(0, separator);
+        this.mPayload = getData(mParameterized ? mValue + CommandCodec.ARGUMENT_SEPARATOR : mValue);
     }
 
     public static BLECommand getBLECommandFromLabel(String mLabel){
-        BLECommand[] bleCommands = BLECommand.values();
-        for (BLECommand bleCommand : bleCommands) {
-            if (bleCommand != null) {
-                if (bleCommand.getLabel().equals(mLabel)) {
-                    return bleCommand;
-                }
-            }
-        }
-        return null;
+        return ProtocolRegistry.commandFromLabel(mLabel);
     }
 
     public static BLECommand getBLECommandFromValue(String mValue){
-        BLECommand[] bleCommands = BLECommand.values();
-        for (BLECommand bleCommand : bleCommands) {
-            if (bleCommand != null) {
-                if (bleCommand.getValue().equals(mValue)) {
-                    return bleCommand;
-                }
-            }
-        }
-        return null;
+        return ProtocolRegistry.commandFromValue(mValue);
     }
 
     public static byte[] getData(String value) {
@@ -56,10 +50,42 @@ public enum BLECommand {
         for (int i=0;i<value.length();i++){
             data[i] = (byte) value.charAt(i);
         }
-        Log.e(TAG,"getData(" + value + "): " + bytesToHex(data));
         return data;
     }
 
+    /**
+     * The encoded command, shared by every send.  It is handed to the GATT stack as is and
+     * must not be modified.  For parameterized commands this is only the "<value>:" prefix;
+     * use {@link CommandCodec#encode(BLECommand, int)} instead.
+     */
+    byte[] getPayload() {
+        return mPayload;
+    }
+
+    public boolean isParameterized() {
+        return mParameterized;
+    }
+
+    /**
+     * Whether a reply can be the answer to this command.  Replies that start with a known
+     * command name only match that command; anything else is accepted, since the firmware
+     * answers commands in the order they were written and the oldest outstanding one wins.
+     */
+    public boolean matchesResponse(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return false;
+        }
+        BLECommand owner = ProtocolRegistry.commandForResponse(data, offset, length);
+        return owner == null || owner.mResponseKey.equals(mResponseKey);
+    }
+
+    /**
+     * @return the command name the firmware echoes at the start of its reply.
+     */
+    public String getResponseKey() {
+        return mResponseKey;
+    }
+
     @Override
     public String toString() {
         return this.mLabel;
@@ -0,0 +1,118 @@
+package com.example.android.bluetoothlegatt.starcom;
+
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+
+/**
+ * Encodes {@link BLECommand}s for the UART WRITE characteristic of one connection.
+ *
+ * Fixed commands are encoded once when {@link BLECommand} is initialized and every send reuses
+ * that payload.  Parameterized commands ({@code set_state:<n>}, {@code get_queue:<n>}, ...) are
+ * encoded into buffers taken from a pool; {@code BluetoothGattCharacteristic.setValue} uses
+ * the whole array, so buffers are pooled per exact length and must be handed back with
+ * {@link #release(byte[])} once the write has completed.  Every payload is checked against the
+ * ATT MTU negotiated for the connection.
+ */
+public class CommandCodec {
+
+    public static final char ARGUMENT_SEPARATOR = ':';
+    public static final int DEFAULT_MTU = 23;
+    // ATT opcode and attribute handle of a Write Request.
+    public static final int ATT_WRITE_HEADER_LENGTH = 3;
+
+    private static final int MAX_POOLED_PER_LENGTH = 4;
+
+    private final SparseArray<ArrayDeque<byte[]>> mPool = new SparseArray<ArrayDeque<byte[]>>();
+    private int mMtu = DEFAULT_MTU;
+
+    public synchronized void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return the largest command that fits in a single write with the current MTU.
+     */
+    public synchronized int getMaxPayloadLength() {
+        return mMtu - ATT_WRITE_HEADER_LENGTH;
+    }
+
+    /**
+     * @return the shared payload of a fixed command, or null if it does not fit the MTU.
+     * @throws IllegalArgumentException if the command needs an argument.
+     */
+    public byte[] encode(BLECommand command) {
+        if (command.isParameterized()) {
+            throw new IllegalArgumentException(command.getValue() + " needs an argument");
+        }
+        byte[] payload = command.getPayload();
+        return payload.length <= getMaxPayloadLength() ? payload : null;
+    }
+
+    /**
+     * Encodes {@code "<value>:<argument>"} into a pooled buffer.
+     *
+     * @return the payload, or null if it does not fit the MTU.
+     * @throws IllegalArgumentException if the command does not take an argument.
+     */
+    public byte[] encode(BLECommand command, int argument) {
+        if (!command.isParameterized()) {
+            throw new IllegalArgumentException(command.getValue() + " takes no argument");
+        }
+        byte[] prefix = command.getPayload();
+        int length = prefix.length + digits(argument);
+        if (length > getMaxPayloadLength()) {
+            return null;
+        }
+        byte[] payload = obtain(length);
+        System.arraycopy(prefix, 0, payload, 0, prefix.length);
+        writeDecimal(argument, payload, length);
+        return payload;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #encode(BLECommand, int)} to the pool.  Never pass
+     * the shared payload of a fixed command.
+     */
+    public synchronized void release(byte[] payload) {
+        ArrayDeque<byte[]> free = mPool.get(payload.length);
+        if (free == null) {
+            free = new ArrayDeque<byte[]>(MAX_POOLED_PER_LENGTH);
+            mPool.put(payload.length, free);
+        }
+        if (free.size() < MAX_POOLED_PER_LENGTH) {
+            free.push(payload);
+        }
+    }
+
+    private synchronized byte[] obtain(int length) {
+        ArrayDeque<byte[]> free = mPool.get(length);
+        byte[] payload = free != null ? free.poll() : null;
+        return payload != null ? payload : new byte[length];
+    }
+
+    private static int digits(int value) {
+        int digits = value < 0 ? 2 : 1;
+        for (long v = Math.abs((long) value); v >= 10; v /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    // Writes the decimal digits of value so that they end just before position end.
+    private static void writeDecimal(int value, byte[] dst, int end) {
+        long v = Math.abs((long) value);
+        int i = end;
+        do {
+            dst[--i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        if (value < 0) {
+            dst[--i] = '-';
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.android.bluetoothlegatt.starcom;
+
+import java.util.Arrays;
+
+/**
+ * One measurement reply of the CropX probe: a value per sensor depth, shallowest first.
+ * Depths the probe reports as invalid hold {@code Float.NaN}.
+ *
+ * Instances are reused by {@link CropXResponseParser}; copy the values with
+ * {@link #set(CropXReading)} or {@link #getValues(float[], int)} to keep them.
+ */
+public class CropXReading {
+
+    public enum Quantity {
+        MOISTURE,
+        TEMPERATURE,
+        EC
+    }
+
+    static final int INITIAL_DEPTHS = 8;
+
+    Quantity mQuantity;
+    float[] mValues = new float[INITIAL_DEPTHS];
+    int mDepthCount;
+
+    public Quantity getQuantity() {
+        return mQuantity;
+    }
+
+    public int getDepthCount() {
+        return mDepthCount;
+    }
+
+    /**
+     * @param depth Index of the depth, 0 being the shallowest sensor.
+     */
+    public float getValue(int depth) {
+        if (depth < 0 || depth >= mDepthCount) {
+            throw new IndexOutOfBoundsException("depth " + depth + " of " + mDepthCount);
+        }
+        return mValues[depth];
+    }
+
+    /**
+     * Copies the values into {@code dst} at {@code offset}.
+     *
+     * @return the number of values copied.
+     */
+    public int getValues(float[] dst, int offset) {
+        System.arraycopy(mValues, 0, dst, offset, mDepthCount);
+        return mDepthCount;
+    }
+
+    public void set(CropXReading other) {
+        mQuantity = other.mQuantity;
+        if (mValues.length < other.mDepthCount) {
+            mValues = new float[other.mValues.length];
+        }
+        System.arraycopy(other.mValues, 0, mValues, 0, other.mDepthCount);
+        mDepthCount = other.mDepthCount;
+    }
+
+    void clear(Quantity quantity) {
+        mQuantity = quantity;
+        mDepthCount = 0;
+    }
+
+    void add(float value) {
+        if (mDepthCount == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mValues.length * 2);
+        }
+        mValues[mDepthCount++] = value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(mQuantity).append('[');
+        for (int i = 0; i < mDepthCount; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mValues[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,317 @@
+package com.example.android.bluetoothlegatt.starcom;
+
+/**
+ * Decodes CropX replies straight from the notification bytes into typed results, without
+ * building Strings.
+ *
+ * Replies are ASCII, optionally starting with the echoed command name and a {@code ':'} or
+ * {@code '='} separator:
+ * <ul>
+ *     <li>{@code get_cropx_moist}, {@code get_cropx_temp}, {@code get_cropx_ec}: one decimal
+ *     number per depth, separated by commas, semicolons or blanks.  A depth the sensor could
+ *     not read ({@code nan}, {@code err}) is reported as {@code Float.NaN}, as is any other
+ *     word that starts a depth.  Words after a value up to the next comma or semicolon are
+ *     taken as its unit and ignored, so {@code 23.4 C} is one depth; in a reply separated by
+ *     blanks only, this means a depth reported as anything but a number, {@code nan} or
+ *     {@code err} is lost.</li>
+ *     <li>{@code get_state}: {@code 0}/{@code 1}, or {@code hibernate}/{@code active}.</li>
+ *     <li>{@code get_ver}: {@code major[.minor[.patch]]}, optionally preceded by a {@code v}.</li>
+ * </ul>
+ * The static methods can be used on any frame, e.g. the response of a sent command.  An
+ * instance registered with {@link #register()} decodes every reply routed by
+ * {@link ProtocolRegistry} and hands the results to its {@link Listener}.
+ */
+public class CropXResponseParser implements ProtocolRegistry.ResponseHandler {
+
+    /**
+     * Receives decoded replies on the thread that delivered the notification.  The result
+     * objects are reused; copy them to keep them beyond the call.
+     */
+    public interface Listener {
+        void onReading(String address, CropXReading reading);
+
+        void onState(String address, CropXState state);
+
+        void onVersion(String address, FirmwareVersion version);
+    }
+
+    private static final byte[] ACTIVE = BLECommand.getData("active");
+    private static final byte[] HIBERNATE = BLECommand.getData("hibernate");
+    private static final byte[] NAN = BLECommand.getData("nan");
+    private static final byte[] ERR = BLECommand.getData("err");
+
+    // Exactly representable powers of ten.
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    private final Listener mListener;
+    private final CropXReading mReading = new CropXReading();
+    private final FirmwareVersion mVersion = new FirmwareVersion();
+
+    public CropXResponseParser(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Registers this parser for the replies to every CropX query.
+     */
+    public void register() {
+        ProtocolRegistry.registerResponseHandler(BLECommand.CropXGetMoist, this);
+        ProtocolRegistry.registerResponseHandler(BLECommand.CropXGetTemp, this);
+        ProtocolRegistry.registerResponseHandler(BLECommand.CropXGetEc, this);
+        ProtocolRegistry.registerResponseHandler(BLECommand.ReadCropXState, this);
+        ProtocolRegistry.registerResponseHandler(BLECommand.ReadVersion, this);
+    }
+
+    @Override
+    public synchronized void onResponse(String address, BLECommand command, byte[] buffer,
+                                        int offset, int length) {
+        CropXReading.Quantity quantity = quantityOf(command);
+        if (quantity != null) {
+            if (parseReading(quantity, buffer, offset, length, mReading)) {
+                mListener.onReading(address, mReading);
+            }
+        } else if (command == BLECommand.ReadCropXState) {
+            mListener.onState(address, parseState(buffer, offset, length));
+        } else if (command == BLECommand.ReadVersion) {
+            if (parseVersion(buffer, offset, length, mVersion)) {
+                mListener.onVersion(address, mVersion);
+            }
+        }
+    }
+
+    /**
+     * @return the quantity measured by {@code command}, or null if it is not a measurement
+     * query.
+     */
+    public static CropXReading.Quantity quantityOf(BLECommand command) {
+        switch (command) {
+            case CropXGetMoist:
+                return CropXReading.Quantity.MOISTURE;
+            case CropXGetTemp:
+                return CropXReading.Quantity.TEMPERATURE;
+            case CropXGetEc:
+                return CropXReading.Quantity.EC;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decodes a measurement reply into {@code out}.
+     *
+     * @return false if the reply holds no value.
+     */
+    public static boolean parseReading(CropXReading.Quantity quantity, byte[] buffer, int offset,
+                                       int length, CropXReading out) {
+        out.clear(quantity);
+        int end = offset + length;
+        int i = bodyOffset(buffer, offset, length);
+        // True from a value up to the next comma or semicolon, where words are its unit.
+        boolean afterValue = false;
+        while (i < end) {
+            while (i < end && isValueSeparator(buffer[i])) {
+                if (buffer[i] == ',' || buffer[i] == ';') {
+                    afterValue = false;
+                }
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            int start = i;
+            while (i < end && !isValueSeparator(buffer[i])) {
+                i++;
+            }
+            float value = parseFloat(buffer, start, i);
+            if (Float.isNaN(value) && afterValue && !startsWithIgnoreCase(buffer, start, i, NAN)
+                    && !startsWithIgnoreCase(buffer, start, i, ERR)) {
+                continue;
+            }
+            out.add(value);
+            afterValue = true;
+        }
+        return out.mDepthCount > 0;
+    }
+
+    /**
+     * @return the state in a {@code get_state} reply, or {@link CropXState#UNKNOWN}.
+     */
+    public static CropXState parseState(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        int i = skipBlanks(buffer, bodyOffset(buffer, offset, length), end);
+        if (i == end) {
+            return CropXState.UNKNOWN;
+        }
+        if (isDigit(buffer[i])) {
+            int value = 0;
+            while (i < end && isDigit(buffer[i]) && value < 1000) {
+                value = value * 10 + (buffer[i++] - '0');
+            }
+            return CropXState.fromValue(value);
+        }
+        if (startsWithIgnoreCase(buffer, i, end, ACTIVE)) {
+            return CropXState.ACTIVE;
+        }
+        if (startsWithIgnoreCase(buffer, i, end, HIBERNATE)) {
+            return CropXState.HIBERNATE;
+        }
+        return CropXState.UNKNOWN;
+    }
+
+    /**
+     * Decodes a {@code get_ver} reply into {@code out}.
+     *
+     * @return false if the reply does not start with a version number.
+     */
+    public static boolean parseVersion(byte[] buffer, int offset, int length,
+                                       FirmwareVersion out) {
+        int end = offset + length;
+        int i = skipBlanks(buffer, bodyOffset(buffer, offset, length), end);
+        if (i < end && (buffer[i] == 'v' || buffer[i] == 'V')) {
+            i++;
+        }
+        if (i == end || !isDigit(buffer[i])) {
+            return false;
+        }
+        int major = 0;
+        int minor = 0;
+        int patch = 0;
+        for (int part = 0; part < 3; part++) {
+            int value = 0;
+            while (i < end && isDigit(buffer[i])) {
+                value = value * 10 + (buffer[i++] - '0');
+            }
+            if (part == 0) {
+                major = value;
+            } else if (part == 1) {
+                minor = value;
+            } else {
+                patch = value;
+            }
+            if (i + 1 >= end || buffer[i] != '.' || !isDigit(buffer[i + 1])) {
+                break;
+            }
+            i++;
+        }
+        out.mMajor = major;
+        out.mMinor = minor;
+        out.mPatch = patch;
+        return true;
+    }
+
+    /**
+     * Parses a decimal number, with optional sign, fraction and exponent, from
+     * {@code buffer[start..end)}.  Anything after the number is ignored.
+     *
+     * @return the value, or {@code Float.NaN} if the range does not start with a number.
+     */
+    static float parseFloat(byte[] buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i++] == '-';
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean seenDigit = false;
+        for (; i < end && isDigit(buffer[i]); i++) {
+            seenDigit = true;
+            if (digits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + (buffer[i] - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+        }
+        if (i < end && buffer[i] == '.') {
+            for (i++; i < end && isDigit(buffer[i]); i++) {
+                seenDigit = true;
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (buffer[i] - '0');
+                    exponent--;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                }
+            }
+        }
+        if (!seenDigit) {
+            return Float.NaN;
+        }
+        if (i + 1 < end && (buffer[i] == 'e' || buffer[i] == 'E')) {
+            int j = i + 1;
+            boolean negativeExponent = false;
+            if (buffer[j] == '-' || buffer[j] == '+') {
+                negativeExponent = buffer[j++] == '-';
+            }
+            if (j < end && isDigit(buffer[j])) {
+                int e = 0;
+                for (; j < end && isDigit(buffer[j]); j++) {
+                    if (e < 1000) {
+                        e = e * 10 + (buffer[j] - '0');
+                    }
+                }
+                exponent += negativeExponent ? -e : e;
+            }
+        }
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length
+                    ? value / POWERS_OF_TEN[-exponent] : value * Math.pow(10, exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length
+                    ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * @return the position after the echoed command name and its separator, or
+     * {@code offset} if the reply does not start with a known command name.
+     */
+    static int bodyOffset(byte[] buffer, int offset, int length) {
+        if (ProtocolRegistry.commandForResponse(buffer, offset, length) == null) {
+            return offset;
+        }
+        int i = offset + ProtocolRegistry.keyLength(buffer, offset, length);
+        int end = offset + length;
+        if (i < end && (buffer[i] == ':' || buffer[i] == '=')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isValueSeparator(byte b) {
+        return b == ',' || b == ';' || b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static int skipBlanks(byte[] buffer, int i, int end) {
+        while (i < end && (buffer[i] == ' ' || buffer[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] buffer, int i, int end, byte[] word) {
+        if (end - i < word.length) {
+            return false;
+        }
+        for (int k = 0; k < word.length; k++) {
+            // ASCII letters only differ in bit 0x20 between cases.
+            if ((buffer[i + k] | 0x20) != word[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
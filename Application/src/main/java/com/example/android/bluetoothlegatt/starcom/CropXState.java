@@ -0,0 +1,35 @@
+package com.example.android.bluetoothlegatt.starcom;
+
+/**
+ * Operating state of the CropX probe, as reported by {@code get_state} and set with
+ * {@code set_state:<n>}.
+ */
+public enum CropXState {
+    HIBERNATE(0),
+    ACTIVE(1),
+    UNKNOWN(-1);
+
+    private int mValue;
+
+    CropXState(int mValue) {
+        this.mValue = mValue;
+    }
+
+    /**
+     * @return the state for a wire value, or {@link #UNKNOWN}.
+     */
+    public static CropXState fromValue(int value) {
+        switch (value) {
+            case 0:
+                return HIBERNATE;
+            case 1:
+                return ACTIVE;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    public int getValue() {
+        return this.mValue;
+    }
+}
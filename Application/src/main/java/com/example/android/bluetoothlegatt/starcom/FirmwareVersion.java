@@ -0,0 +1,72 @@
+package com.example.android.bluetoothlegatt.starcom;
+
+/**
+ * Firmware version reported by {@code get_ver}, as a {@code major.minor.patch} tuple.
+ * Components missing from the reply are 0.  Instances are mutable so the parser can fill a
+ * caller-owned one.
+ */
+public class FirmwareVersion implements Comparable<FirmwareVersion> {
+
+    int mMajor;
+    int mMinor;
+    int mPatch;
+
+    public FirmwareVersion() {
+    }
+
+    public FirmwareVersion(int major, int minor, int patch) {
+        mMajor = major;
+        mMinor = minor;
+        mPatch = patch;
+    }
+
+    public int getMajor() {
+        return mMajor;
+    }
+
+    public int getMinor() {
+        return mMinor;
+    }
+
+    public int getPatch() {
+        return mPatch;
+    }
+
+    public void set(FirmwareVersion other) {
+        mMajor = other.mMajor;
+        mMinor = other.mMinor;
+        mPatch = other.mPatch;
+    }
+
+    @Override
+    public int compareTo(FirmwareVersion other) {
+        if (mMajor != other.mMajor) {
+            return mMajor < other.mMajor ? -1 : 1;
+        }
+        if (mMinor != other.mMinor) {
+            return mMinor < other.mMinor ? -1 : 1;
+        }
+        if (mPatch != other.mPatch) {
+            return mPatch < other.mPatch ? -1 : 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FirmwareVersion)) {
+            return false;
+        }
+        return compareTo((FirmwareVersion) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return (mMajor * 31 + mMinor) * 31 + mPatch;
+    }
+
+    @Override
+    public String toString() {
+        return mMajor + "." + mMinor + "." + mPatch;
+    }
+}
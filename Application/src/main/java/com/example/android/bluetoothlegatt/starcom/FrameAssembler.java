@@ -0,0 +1,248 @@
+package com.example.android.bluetoothlegatt.starcom;
+
+/**
+ * Reassembles Starcom UART notifications into complete messages.
+ *
+ * A notification carries at most one ATT payload, so longer replies (queue dumps in
+ * particular) arrive split over several notifications, and one notification can also carry the
+ * tail of one message and the head of the next.  Bytes are appended to a fixed ring buffer and
+ * a frame is emitted whenever the framing rule finds a complete message:
+ * <ul>
+ *     <li>{@link #delimited(int, byte, FrameListener)}: frames end with a delimiter byte, which
+ *     is not part of the frame.  A carriage return before a newline delimiter is dropped as
+ *     well.</li>
+ *     <li>{@link #lengthPrefixed(int, int, FrameListener)}: each frame starts with a big-endian
+ *     length header of 1 or 2 bytes.</li>
+ * </ul>
+ * Frames are handed to the listener as a slice of an internal buffer, which is only valid for
+ * the duration of the callback; nothing is allocated once the assembler is constructed.
+ * Frames that do not fit in the buffer and partial frames that are flushed or reset are
+ * dropped and counted.
+ */
+public class FrameAssembler {
+
+    public interface FrameListener {
+        /**
+         * Called for every complete frame.  {@code buffer} is reused, so copy anything that
+         * has to outlive the call.
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    public static final byte NEWLINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final FrameListener mListener;
+    private final byte[] mRing;
+    private final int mMask;
+    // Frames that wrap around the end of the ring are copied here so they can be handed out
+    // as one contiguous slice.
+    private final byte[] mLinear;
+    private final boolean mDelimited;
+    private final byte mDelimiter;
+    private final int mHeaderLength;
+
+    // Absolute positions; the ring index is position & mMask.
+    private long mHead;
+    private long mTail;
+    private long mScan;
+    private boolean mDiscarding;
+    // Bytes of an oversized length-prefixed frame that are still to be skipped.
+    private long mSkip;
+
+    private long mBytesIn;
+    private long mFrames;
+    private long mOverflows;
+    private long mPartialFrames;
+
+    private FrameAssembler(int capacity, boolean delimited, byte delimiter, int headerLength,
+                           FrameListener listener) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        mRing = new byte[size];
+        mMask = size - 1;
+        mLinear = new byte[size];
+        mDelimited = delimited;
+        mDelimiter = delimiter;
+        mHeaderLength = headerLength;
+        mListener = listener;
+    }
+
+    /**
+     * @param capacity Largest frame that can be reassembled, rounded up to a power of two.
+     * @param delimiter Byte that terminates a frame, usually {@link #NEWLINE}.
+     */
+    public static FrameAssembler delimited(int capacity, byte delimiter, FrameListener listener) {
+        return new FrameAssembler(capacity, true, delimiter, 0, listener);
+    }
+
+    /**
+     * @param capacity Largest frame that can be reassembled, rounded up to a power of two.
+     * @param headerLength Size of the big-endian length header, 1 or 2 bytes.
+     */
+    public static FrameAssembler lengthPrefixed(int capacity, int headerLength,
+                                                FrameListener listener) {
+        if (headerLength != 1 && headerLength != 2) {
+            throw new IllegalArgumentException("headerLength must be 1 or 2: " + headerLength);
+        }
+        return new FrameAssembler(capacity, false, (byte) 0, headerLength, listener);
+    }
+
+    /**
+     * Appends one notification payload and emits every frame it completes.
+     */
+    public void append(byte[] data, int offset, int length) {
+        mBytesIn += length;
+        for (int i = 0; i < length; ) {
+            int free = mRing.length - (int) (mTail - mHead);
+            if (free == 0) {
+                // The delimited frame under construction does not fit; drop it and everything up
+                // to the next delimiter.  Counted once, however often the ring fills with it.
+                // (An oversized length-prefixed frame is skipped before it can fill the ring.)
+                if (!mDiscarding) {
+                    mOverflows++;
+                }
+                mHead = mTail;
+                mScan = mTail;
+                mDiscarding = true;
+                free = mRing.length;
+            }
+            int n = Math.min(free, length - i);
+            int start = (int) (mTail & mMask);
+            int first = Math.min(n, mRing.length - start);
+            System.arraycopy(data, offset + i, mRing, start, first);
+            System.arraycopy(data, offset + i + first, mRing, 0, n - first);
+            mTail += n;
+            i += n;
+            if (mDelimited) {
+                scanDelimited();
+            } else {
+                scanLengthPrefixed();
+            }
+        }
+    }
+
+    /**
+     * Emits whatever has been received since the last complete frame as a frame of its own.
+     * Meant to be called after the link has been quiet for a while, for replies that are not
+     * terminated.  Counted as a partial frame.
+     */
+    public void flush() {
+        // A frame that was being skipped was cut short; the next byte starts a new one.
+        mSkip = 0;
+        if (mTail == mHead) {
+            return;
+        }
+        mPartialFrames++;
+        if (!mDiscarding && mDelimited) {
+            emit(mHead, (int) (mTail - mHead));
+        }
+        mHead = mTail;
+        mScan = mTail;
+        mDiscarding = false;
+    }
+
+    /**
+     * Drops any partial frame, e.g. after a disconnect.
+     */
+    public void reset() {
+        if (mTail != mHead) {
+            mPartialFrames++;
+        }
+        mHead = mTail;
+        mScan = mTail;
+        mDiscarding = false;
+        mSkip = 0;
+    }
+
+    public long getBytesIn() {
+        return mBytesIn;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return the number of frames dropped because they were longer than the buffer.
+     */
+    public long getOverflowCount() {
+        return mOverflows;
+    }
+
+    /**
+     * @return the number of incomplete frames emitted by {@link #flush()} or dropped by
+     * {@link #reset()}.
+     */
+    public long getPartialFrameCount() {
+        return mPartialFrames;
+    }
+
+    private void scanDelimited() {
+        while (mScan < mTail) {
+            if (mRing[(int) (mScan & mMask)] == mDelimiter) {
+                long end = mScan;
+                mScan++;
+                if (mDiscarding) {
+                    mDiscarding = false;
+                } else {
+                    if (mDelimiter == NEWLINE && end > mHead
+                            && mRing[(int) ((end - 1) & mMask)] == CARRIAGE_RETURN) {
+                        end--;
+                    }
+                    if (end > mHead) {
+                        emit(mHead, (int) (end - mHead));
+                    }
+                }
+                mHead = mScan;
+            } else {
+                mScan++;
+            }
+        }
+    }
+
+    private void scanLengthPrefixed() {
+        while (true) {
+            if (mSkip > 0) {
+                long skipped = Math.min(mSkip, mTail - mHead);
+                mHead += skipped;
+                mSkip -= skipped;
+                if (mSkip > 0) {
+                    break;
+                }
+            }
+            if (mTail - mHead < mHeaderLength) {
+                break;
+            }
+            int frameLength = mRing[(int) (mHead & mMask)] & 0xFF;
+            if (mHeaderLength == 2) {
+                frameLength = (frameLength << 8) | (mRing[(int) ((mHead + 1) & mMask)] & 0xFF);
+            }
+            if (frameLength + mHeaderLength > mRing.length) {
+                // Too long to reassemble, but its length is known: skip it and carry on with
+                // the frame after it.
+                mOverflows++;
+                mSkip = mHeaderLength + frameLength;
+                continue;
+            }
+            if (mTail - mHead < mHeaderLength + frameLength) {
+                break;
+            }
+            emit(mHead + mHeaderLength, frameLength);
+            mHead += mHeaderLength + frameLength;
+        }
+        mScan = mTail;
+    }
+
+    private void emit(long position, int length) {
+        mFrames++;
+        int start = (int) (position & mMask);
+        if (start + length <= mRing.length) {
+            mListener.onFrame(mRing, start, length);
+        } else {
+            int first = mRing.length - start;
+            System.arraycopy(mRing, start, mLinear, 0, first);
+            System.arraycopy(mRing, 0, mLinear, first, length - first);
+            mListener.onFrame(mLinear, 0, length);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.android.bluetoothlegatt.starcom;
+
+/**
+ * Table-driven hex encoding and decoding for log output and protocol payloads.
+ *
+ * Each byte is encoded with a single lookup into a 512-entry table of precomputed digit pairs.
+ * The {@code encode} methods write into a caller-supplied buffer and allocate nothing; the
+ * {@code toHex} helpers allocate exactly the resulting String.
+ */
+public final class Hex {
+
+    private static final char[] UPPER_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] LOWER_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Two chars per byte value.
+    private static final char[] UPPER_PAIRS = pairs(UPPER_DIGITS);
+    private static final char[] LOWER_PAIRS = pairs(LOWER_DIGITS);
+
+    // Nibble value of an ASCII hex digit, or -1.
+    private static final byte[] NIBBLES = new byte[128];
+
+    static {
+        for (int i = 0; i < NIBBLES.length; i++) {
+            NIBBLES[i] = -1;
+        }
+        for (int i = 0; i < 16; i++) {
+            NIBBLES[UPPER_DIGITS[i]] = (byte) i;
+            NIBBLES[LOWER_DIGITS[i]] = (byte) i;
+        }
+    }
+
+    private Hex() {
+    }
+
+    private static char[] pairs(char[] digits) {
+        char[] pairs = new char[512];
+        for (int i = 0; i < 256; i++) {
+            pairs[i * 2] = digits[i >>> 4];
+            pairs[i * 2 + 1] = digits[i & 0x0F];
+        }
+        return pairs;
+    }
+
+    /**
+     * @return the number of chars {@link #encode} writes for {@code length} bytes.  Spaced output
+     * separates bytes with a single space and has no trailing space.
+     */
+    public static int encodedLength(int length, boolean spaced) {
+        if (length <= 0) {
+            return 0;
+        }
+        return spaced ? length * 3 - 1 : length * 2;
+    }
+
+    /**
+     * Encodes {@code length} bytes of {@code src} into {@code dst}.
+     *
+     * @return the number of chars written.
+     */
+    public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset,
+                             boolean spaced, boolean upperCase) {
+        char[] pairs = upperCase ? UPPER_PAIRS : LOWER_PAIRS;
+        int d = dstOffset;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int p = (src[i] & 0xFF) << 1;
+            if (spaced && i != offset) {
+                dst[d++] = ' ';
+            }
+            dst[d++] = pairs[p];
+            dst[d++] = pairs[p + 1];
+        }
+        return d - dstOffset;
+    }
+
+    /**
+     * Encodes bytes onto the end of a (typically reused) StringBuilder.
+     */
+    public static void encode(byte[] src, int offset, int length, StringBuilder dst,
+                              boolean spaced, boolean upperCase) {
+        char[] pairs = upperCase ? UPPER_PAIRS : LOWER_PAIRS;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int p = (src[i] & 0xFF) << 1;
+            if (spaced && i != offset) {
+                dst.append(' ');
+            }
+            dst.append(pairs[p]).append(pairs[p + 1]);
+        }
+    }
+
+    /**
+     * @return the bytes as an unspaced, upper case hex String.
+     */
+    public static String toHex(byte[] bytes) {
+        return toHex(bytes, 0, bytes.length, false, true);
+    }
+
+    public static String toHex(byte[] bytes, int offset, int length, boolean spaced,
+                               boolean upperCase) {
+        char[] chars = new char[encodedLength(length, spaced)];
+        encode(bytes, offset, length, chars, 0, spaced, upperCase);
+        return new String(chars);
+    }
+
+    /**
+     * Decodes hex digits into {@code dst}.  Spaces between bytes are skipped; digits of either
+     * case are accepted.
+     *
+     * @return the number of bytes written.
+     * @throws IllegalArgumentException if {@code hex} contains anything else or an odd number
+     *         of digits.
+     */
+    public static int decode(CharSequence hex, byte[] dst, int dstOffset) {
+        int d = dstOffset;
+        int high = -1;
+        for (int i = 0, n = hex.length(); i < n; i++) {
+            char c = hex.charAt(i);
+            if (c == ' ' && high < 0) {
+                continue;
+            }
+            int nibble = c < 128 ? NIBBLES[c] : -1;
+            if (nibble < 0) {
+                throw new IllegalArgumentException("Not a hex digit at " + i + ": " + c);
+            }
+            if (high < 0) {
+                high = nibble;
+            } else {
+                dst[d++] = (byte) ((high << 4) | nibble);
+                high = -1;
+            }
+        }
+        if (high >= 0) {
+            throw new IllegalArgumentException("Odd number of hex digits");
+        }
+        return d - dstOffset;
+    }
+
+    /**
+     * @return the bytes encoded by {@code hex}.
+     * @see #decode(CharSequence, byte[], int)
+     */
+    public static byte[] fromHex(CharSequence hex) {
+        byte[] buffer = new byte[(hex.length() + 1) / 2];
+        int length = decode(hex, buffer, 0);
+        if (length == buffer.length) {
+            return buffer;
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, 0, bytes, 0, length);
+        return bytes;
+    }
+}
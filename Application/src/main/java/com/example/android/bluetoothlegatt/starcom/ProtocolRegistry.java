@@ -0,0 +1,200 @@
+package com.example.android.bluetoothlegatt.starcom;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Lookup tables for the Starcom protocol, built once when the class is loaded.
+ *
+ * Commands are indexed by label and wire value, UUIDs by label, UUID and nickname, so none of
+ * the lookups on the GATT callback paths scan {@code values()}.  Replies are routed by their
+ * key, the leading bytes up to the first {@code ':'}, {@code '='}, {@code ','} or space (the
+ * firmware echoes the command name, e.g. {@code get_cropx_moist:...}).  Keys are matched
+ * straight from the notification bytes through an open-addressed table, without building a
+ * String.  This is the one place to extend when the protocol grows.
+ */
+public final class ProtocolRegistry {
+
+    /**
+     * Handles replies with a registered key.  {@code buffer} is only valid during the call.
+     */
+    public interface ResponseHandler {
+        void onResponse(String address, BLECommand command, byte[] buffer, int offset,
+                        int length);
+    }
+
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private static final Map<String, BLECommand> COMMANDS_BY_LABEL =
+            new HashMap<String, BLECommand>();
+    private static final Map<String, BLECommand> COMMANDS_BY_VALUE =
+            new HashMap<String, BLECommand>();
+    private static final Map<String, StarcomUUID> UUIDS_BY_LABEL =
+            new HashMap<String, StarcomUUID>();
+    private static final Map<UUID, StarcomUUID> UUIDS_BY_UUID = new HashMap<UUID, StarcomUUID>();
+    private static final Map<String, StarcomUUID> UUIDS_BY_NICKNAME =
+            new HashMap<String, StarcomUUID>();
+
+    // Open-addressed table from reply key bytes to the command that produces the reply.
+    // Sized to a power of two at least twice the number of keys.
+    private static final int KEY_TABLE_SIZE = 64;
+    private static final byte[][] KEYS = new byte[KEY_TABLE_SIZE][];
+    private static final BLECommand[] KEY_COMMANDS = new BLECommand[KEY_TABLE_SIZE];
+    private static final ResponseHandler[] KEY_HANDLERS = new ResponseHandler[KEY_TABLE_SIZE];
+
+    static {
+        for (BLECommand command : BLECommand.values()) {
+            COMMANDS_BY_LABEL.put(command.getLabel(), command);
+            COMMANDS_BY_VALUE.put(command.getValue(), command);
+            String key = command.getResponseKey();
+            if (findSlot(command.getPayload(), 0, key.length()) < 0) {
+                addKey(command, key);
+            }
+        }
+        for (StarcomUUID starcomUUID : StarcomUUID.values()) {
+            UUIDS_BY_LABEL.put(starcomUUID.getmLabel(), starcomUUID);
+            UUIDS_BY_UUID.put(starcomUUID.getmUUID(), starcomUUID);
+            UUIDS_BY_NICKNAME.put(starcomUUID.getmNickname(), starcomUUID);
+        }
+    }
+
+    private ProtocolRegistry() {
+    }
+
+    public static BLECommand commandFromLabel(String label) {
+        return COMMANDS_BY_LABEL.get(label);
+    }
+
+    public static BLECommand commandFromValue(String value) {
+        return COMMANDS_BY_VALUE.get(value);
+    }
+
+    public static StarcomUUID uuidFromLabel(String label) {
+        return UUIDS_BY_LABEL.get(label);
+    }
+
+    public static StarcomUUID uuidFromUUID(UUID uuid) {
+        return UUIDS_BY_UUID.get(uuid);
+    }
+
+    public static StarcomUUID uuidFromNickname(String nickname) {
+        return UUIDS_BY_NICKNAME.get(nickname);
+    }
+
+    /**
+     * Registers the handler for replies to {@code command}.  Commands sharing a reply key (for
+     * example every {@code get_queue} variant) share the handler.
+     */
+    public static synchronized void registerResponseHandler(BLECommand command,
+                                                            ResponseHandler handler) {
+        byte[] payload = command.getPayload();
+        int slot = findSlot(payload, 0, command.getResponseKey().length());
+        KEY_HANDLERS[slot] = handler;
+    }
+
+    /**
+     * @return the command whose reply starts with the key of this frame, or null if the key is
+     * not known (the frame then carries data without an echoed command name).
+     */
+    public static BLECommand commandForResponse(byte[] buffer, int offset, int length) {
+        int slot = findSlot(buffer, offset, keyLength(buffer, offset, length));
+        return slot >= 0 ? KEY_COMMANDS[slot] : null;
+    }
+
+    /**
+     * Hands a reply from the device at {@code address} to the handler registered for its key.
+     *
+     * @return false if the key is unknown or no handler is registered for it.
+     */
+    public static boolean dispatch(String address, byte[] buffer, int offset, int length) {
+        return dispatch(address, null, buffer, offset, length);
+    }
+
+    /**
+     * Like {@link #dispatch(String, byte[], int, int)}, but a frame without a known key goes to
+     * the handler of {@code answered}, the command it was matched to, if there is one.  The
+     * probe sends some replies bare, without echoing the command name.
+     */
+    public static boolean dispatch(String address, BLECommand answered, byte[] buffer,
+                                   int offset, int length) {
+        int slot = findSlot(buffer, offset, keyLength(buffer, offset, length));
+        BLECommand command;
+        if (slot >= 0) {
+            command = KEY_COMMANDS[slot];
+        } else if (answered != null) {
+            slot = findSlot(answered.getPayload(), 0, answered.getResponseKey().length());
+            command = answered;
+        } else {
+            return false;
+        }
+        ResponseHandler handler = slot >= 0 ? KEY_HANDLERS[slot] : null;
+        if (handler == null) {
+            return false;
+        }
+        handler.onResponse(address, command, buffer, offset, length);
+        return true;
+    }
+
+    /**
+     * @return the length of the reply key at the start of the frame.
+     */
+    static int keyLength(byte[] buffer, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = buffer[offset + i];
+            if (b == ':' || b == '=' || b == ',' || b == ' ') {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static void addKey(BLECommand command, String key) {
+        byte[] bytes = BLECommand.getData(key);
+        int slot = hash(bytes, 0, bytes.length) & (KEY_TABLE_SIZE - 1);
+        while (KEYS[slot] != null) {
+            slot = (slot + 1) & (KEY_TABLE_SIZE - 1);
+        }
+        KEYS[slot] = bytes;
+        KEY_COMMANDS[slot] = command;
+    }
+
+    private static int findSlot(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return -1;
+        }
+        int slot = hash(buffer, offset, length) & (KEY_TABLE_SIZE - 1);
+        for (int probes = 0; probes < KEY_TABLE_SIZE; probes++) {
+            byte[] key = KEYS[slot];
+            if (key == null) {
+                return -1;
+            }
+            if (equals(key, buffer, offset, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & (KEY_TABLE_SIZE - 1);
+        }
+        return -1;
+    }
+
+    private static int hash(byte[] buffer, int offset, int length) {
+        int h = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            h = 31 * h + buffer[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(byte[] key, byte[] buffer, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.android.bluetoothlegatt.starcom;
+
+/**
+ * Decodes the records of a {@code get_queue} dump one at a time, as they are reassembled,
+ * into {@link RecordBatch}es.
+ *
+ * Each record is one line of comma separated fields: the timestamp, then the moisture of
+ * every depth, the temperature of every depth and the EC of every depth, shallowest first:
+ * <pre>
+ *     1700000000,31.2,28.7,25.0,18.5,18.1,17.9,0.41,0.38,0.35
+ * </pre>
+ * The depth count is either given or taken from the first record.  Lines starting with a
+ * command name (the echoed {@code get_queue} header) and empty lines are skipped; records
+ * with the wrong number of fields or without a timestamp are dropped and counted.  A value the
+ * sensor could not read ({@code nan}, {@code err}) is kept as NaN, like a depth the
+ * {@link CropXResponseParser} can not parse.  A batch is handed to the listener as soon as it
+ * is full and by {@link #flush()}, so memory stays bounded by one batch whatever the length of
+ * the dump, and nothing is allocated per record.
+ */
+public class QueueRecordDecoder {
+
+    public interface BatchListener {
+        /**
+         * Called with every full batch, and with the last partial one on {@link #flush()}.
+         * The batch is reused once the call returns.
+         */
+        void onBatch(RecordBatch batch);
+    }
+
+    public static final int DEFAULT_BATCH_CAPACITY = 128;
+
+    private static final byte FIELD_SEPARATOR = ',';
+
+    private final int mBatchCapacity;
+    private final BatchListener mListener;
+    private int mDepthCount;
+    private RecordBatch mBatch;
+    private long mRecords;
+    private long mMalformed;
+
+    /**
+     * @param depthCount Number of sensor depths per record, or 0 to take it from the first
+     *                   record.
+     */
+    public QueueRecordDecoder(int depthCount, int batchCapacity, BatchListener listener) {
+        mDepthCount = depthCount;
+        mBatchCapacity = batchCapacity;
+        mListener = listener;
+        if (depthCount > 0) {
+            mBatch = new RecordBatch(batchCapacity, depthCount);
+        }
+    }
+
+    /**
+     * Decodes one record.
+     *
+     * @return false if the line was skipped or dropped.
+     */
+    public boolean decode(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        while (end > offset && (buffer[end - 1] == '\r' || buffer[end - 1] == ' ')) {
+            end--;
+        }
+        if (end == offset || ProtocolRegistry.commandForResponse(buffer, offset, end - offset)
+                != null) {
+            return false;
+        }
+        int fields = 1;
+        for (int i = offset; i < end; i++) {
+            if (buffer[i] == FIELD_SEPARATOR) {
+                fields++;
+            }
+        }
+        if (mBatch == null) {
+            if (fields < 4 || (fields - 1) % 3 != 0) {
+                mMalformed++;
+                return false;
+            }
+            mDepthCount = (fields - 1) / 3;
+            mBatch = new RecordBatch(mBatchCapacity, mDepthCount);
+        }
+        if (fields != 1 + 3 * mDepthCount) {
+            mMalformed++;
+            return false;
+        }
+
+        int row = mBatch.mSize;
+        int i = offset;
+        long timestamp = 0;
+        int digits = 0;
+        for (; i < end && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+            timestamp = timestamp * 10 + (buffer[i] - '0');
+            digits++;
+        }
+        if (digits == 0 || digits > 18 || (i < end && buffer[i] != FIELD_SEPARATOR)) {
+            mMalformed++;
+            return false;
+        }
+        mBatch.mTimestamps[row] = timestamp;
+        for (int field = 0; i < end; field++) {
+            int start = ++i;
+            while (i < end && buffer[i] != FIELD_SEPARATOR) {
+                i++;
+            }
+            float value = CropXResponseParser.parseFloat(buffer, start, i);
+            int depth = field % mDepthCount;
+            switch (field / mDepthCount) {
+                case 0:
+                    mBatch.mMoisture[depth][row] = value;
+                    break;
+                case 1:
+                    mBatch.mTemperature[depth][row] = value;
+                    break;
+                default:
+                    mBatch.mEc[depth][row] = value;
+                    break;
+            }
+        }
+        mBatch.mSize++;
+        mRecords++;
+        if (mBatch.isFull()) {
+            emit();
+        }
+        return true;
+    }
+
+    /**
+     * Hands out the records decoded since the last full batch, e.g. when the dump ends.
+     */
+    public void flush() {
+        if (mBatch != null && mBatch.mSize > 0) {
+            emit();
+        }
+    }
+
+    /**
+     * @return the depth count, or 0 if no record has been decoded yet and none was given.
+     */
+    public int getDepthCount() {
+        return mDepthCount;
+    }
+
+    public long getRecordCount() {
+        return mRecords;
+    }
+
+    public long getMalformedCount() {
+        return mMalformed;
+    }
+
+    private void emit() {
+        mListener.onBatch(mBatch);
+        mBatch.clear();
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.android.bluetoothlegatt.starcom;
+
+/**
+ * A batch of decoded queue records in columnar form: one array of timestamps, and per
+ * quantity one array per depth, indexed by record.
+ *
+ * Batches are reused by {@link QueueRecordDecoder}; consume or copy the columns before the
+ * listener returns.
+ */
+public class RecordBatch {
+
+    private final int mCapacity;
+    private final int mDepthCount;
+    final long[] mTimestamps;
+    final float[][] mMoisture;
+    final float[][] mTemperature;
+    final float[][] mEc;
+    int mSize;
+
+    RecordBatch(int capacity, int depthCount) {
+        mCapacity = capacity;
+        mDepthCount = depthCount;
+        mTimestamps = new long[capacity];
+        mMoisture = new float[depthCount][capacity];
+        mTemperature = new float[depthCount][capacity];
+        mEc = new float[depthCount][capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getDepthCount() {
+        return mDepthCount;
+    }
+
+    /**
+     * @return the timestamps of the records; only the first {@link #size()} are valid.
+     */
+    public long[] getTimestamps() {
+        return mTimestamps;
+    }
+
+    /**
+     * @return the values of {@code quantity} at {@code depth}; only the first {@link #size()}
+     * are valid.
+     */
+    public float[] getColumn(CropXReading.Quantity quantity, int depth) {
+        switch (quantity) {
+            case MOISTURE:
+                return mMoisture[depth];
+            case TEMPERATURE:
+                return mTemperature[depth];
+            default:
+                return mEc[depth];
+        }
+    }
+
+    boolean isFull() {
+        return mSize == mCapacity;
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+}
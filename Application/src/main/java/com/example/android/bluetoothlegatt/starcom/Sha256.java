@@ -1,64 +1,74 @@
 package com.example.android.bluetoothlegatt.starcom;
 
-import android.util.Log;
-
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * Computes the authorization token for the Starcom handshake: SHA-256 over the device key
+ * followed by the seed read from the device.
+ *
+ * Each thread keeps its own {@code MessageDigest}, so a token costs no provider lookup and no
+ * allocation when written into a caller-provided buffer.  The 16 byte key is shorter than one
+ * SHA-256 block, so the digest only buffers it and there is no compression round that could be
+ * precomputed; feeding it again from the constant array is cheaper than cloning a primed digest.
+ * Key material and tokens are never logged; failures are only reported through the return
+ * value, for the caller to trace.
+ */
 public class Sha256 {
 
+    public static final int TOKEN_LENGTH = 32;
+
     private static final byte[] BLE_DEVICE_KEY = {0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
             0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x10};
 
-    private static final String TAG = Sha256.class.getSimpleName();
-    private static final char[] hexArray = "0123456789ABCDEF".toCharArray();
-
-    public static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for ( int j = 0; j < bytes.length; j++ ) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Reported by getSHA256Token() returning false.
+                return null;
+            }
         }
-        return new String(hexChars).toUpperCase();
-    }
+    };
+
     // PREPROCESSING [§6.2.1]
     public static byte[] getSHA256Token(byte[] values){
-        byte[] mergedBytes = new byte[BLE_DEVICE_KEY.length + values.length];
-        System.arraycopy(BLE_DEVICE_KEY, 0, mergedBytes, 0, BLE_DEVICE_KEY.length);
-        System.arraycopy(values, 0, mergedBytes, BLE_DEVICE_KEY.length, values.length);
-//        StringBuilder concatBytesAsString = new StringBuilder();
-//        for (byte key : mergedBytes){
-//            concatBytesAsString.append(Integer.toHexString(key));
-//        }
-        String data = bytesToHex(mergedBytes);
-        Log.e(TAG, "getSHA256Token: mergedBytes = " + data);
-//        String data = bin2hex(mergedBytes);
-        byte[] result = sha256(mergedBytes);
-        if (result != null) {
-            Log.e(TAG, "getSHA256Token: result = " + bytesToHex(result));
+        byte[] token = new byte[TOKEN_LENGTH];
+        if (!getSHA256Token(values, 0, values.length, token, 0)) {
+            return null;
         }
-        return result;
+        return token;
     }
 
-    private static byte[] sha256(byte[] data){
+    /**
+     * Writes the token for {@code length} seed bytes into {@code token} at {@code tokenOffset}.
+     *
+     * @return false if SHA-256 is unavailable or {@code token} has less than
+     *         {@link #TOKEN_LENGTH} bytes of room.
+     */
+    public static boolean getSHA256Token(byte[] seed, int offset, int length,
+                                         byte[] token, int tokenOffset) {
+        MessageDigest md = DIGEST.get();
+        if (md == null || tokenOffset < 0 || token.length - tokenOffset < TOKEN_LENGTH) {
+            return false;
+        }
+        boolean done = false;
         try {
-            MessageDigest md =  MessageDigest.getInstance("SHA-256");
-            md.update(data);
-            MessageDigest tc1 = (MessageDigest) md.clone();
-            return tc1.digest();
-        } catch (NoSuchAlgorithmException el) {
-            Log.e(TAG,el.getMessage());
-        } catch (CloneNotSupportedException e) {
-            Log.e(TAG,e.getMessage());
+            md.update(BLE_DEVICE_KEY, 0, BLE_DEVICE_KEY.length);
+            md.update(seed, offset, length);
+            md.digest(token, tokenOffset, TOKEN_LENGTH);
+            done = true;
+        } catch (DigestException e) {
+            return false;
+        } finally {
+            if (!done) {
+                // The digest is reused by the next token on this thread.
+                md.reset();
+            }
         }
-        return null;
-    }
-
-    static String bin2hex(byte[] data) {
-        StringBuilder hex = new StringBuilder();
-        for (byte b : data)
-            hex.append(String.format("%02x", b & 0xFF));
-        return hex.toString();
+        return true;
     }
 }
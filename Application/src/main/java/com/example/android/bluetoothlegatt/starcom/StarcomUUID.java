@@ -20,39 +20,17 @@ public enum StarcomUUID {
     }
 
     public static StarcomUUID getStarcomUUIDFromLabel(String mLabel){
-        StarcomUUID[] starcomUUIDS = StarcomUUID.values();
-        for (StarcomUUID starcomUUID : starcomUUIDS) {
-            if (starcomUUID != null) {
-                if (starcomUUID.getmLabel().equals(mLabel)) {
-                    return starcomUUID;
-                }
-            }
-        }
-        return null;
+        return ProtocolRegistry.uuidFromLabel(mLabel);
     }
 
     public static String getStarcomUUIDFromUUID(UUID mUUID){
-        StarcomUUID[] starcomUUIDS = StarcomUUID.values();
-        for (StarcomUUID starcomUUID : starcomUUIDS) {
-            if (starcomUUID != null) {
-                if (starcomUUID.getmUUID().equals(mUUID)) {
-                    return starcomUUID.toString();
-                }
-            }
-        }
-        return "";
+        StarcomUUID starcomUUID = ProtocolRegistry.uuidFromUUID(mUUID);
+        return starcomUUID != null ? starcomUUID.toString() : "";
     }
 
     public static String getStarcomUUIDFromNickname(String mNickname){
-        StarcomUUID[] starcomUUIDS = StarcomUUID.values();
-        for (StarcomUUID starcomUUID : starcomUUIDS) {
-            if (starcomUUID != null) {
-                if (starcomUUID.getmNickname().equals(mNickname)) {
-                    return starcomUUID.toString();
-                }
-            }
-        }
-        return "";
+        StarcomUUID starcomUUID = ProtocolRegistry.uuidFromNickname(mNickname);
+        return starcomUUID != null ? starcomUUID.toString() : "";
     }
 
     @Override